@@ -0,0 +1,53 @@
+package nawaman.papercuts.concurrent.asynctosync;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads shared by all {@link AsyncToSync} to wait for the plain futures (the adapters turning them into
+ *   CompletableFuture) -- the default of {@link AsyncToSync#internalExecutor(java.util.concurrent.Executor)} -- and
+ *   to run the {@code parallely} tasks.
+ * 
+ * Each adapter blocks until its future completes or its caller's deadline passes (and each parallely task runs until
+ *   its wait is over), so a fixed pool would starve the callers behind the slow futures. A thread is started
+ *   whenever none is idle and the idle threads stop after a while -- so there are at most as many threads as the
+ *   plain futures and the parallely tasks waited with at the same time.
+ * 
+ * @author NawaMan
+ */
+final class AdapterThreads {
+    
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    
+    private AdapterThreads() {
+    }
+    
+    /**
+     * Returns the shared executor of the adapters and the parallely tasks.
+     * 
+     * @return the shared executor.
+     */
+    static ExecutorService instance() {
+        return Holder.INSTANCE;
+    }
+    
+    private static ThreadPoolExecutor newExecutor() {
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 30, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable->{
+            Thread thread = new Thread(runnable, "AsyncToSync-adapter-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    // == AUX class ====================================================================================================
+    
+    private static final class Holder {
+        
+        static final ThreadPoolExecutor INSTANCE = newExecutor();
+        
+    }
+    
+}
@@ -0,0 +1,90 @@
+package nawaman.papercuts.concurrent.asynctosync;
+
+import java.util.Collection;
+import java.util.concurrent.Future;
+import java.util.function.DoubleSupplier;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * The {@link AsyncToSync} specialized for double results.
+ * 
+ * The default value and the handlers are primitive so the fallbacks do not box, and the batch wait returns
+ *   {@code double[]} instead of a list of boxes. The handlers follow the same rules as AsyncToSync (see
+ *   {@link PrimitiveAsyncToSync}).
+ * 
+ * @author NawaMan
+ */
+public class AsyncToDouble extends PrimitiveAsyncToSync<AsyncToDouble, DoubleSupplier, ToDoubleFunction<RuntimeException>> {
+    
+    private double orElse = 0;
+    
+    @Override
+    AsyncToDouble self() {
+        return this;
+    }
+    
+    /**
+     * Specify the default value (used when the future is null, the value is null and in case of failure without
+     *   other handlers).
+     * 
+     * @param defaultValue
+     *            the default value.
+     * @return this AsyncToSync.
+     */
+    public AsyncToDouble orElse(
+            double defaultValue) {
+        this.orElse    = defaultValue;
+        this.hasOrElse = true;
+        return this;
+    }
+    
+    /**
+     * Start the invocation to the future object.
+     * 
+     * @param aync
+     *            the asynchronous future.
+     * @return the result value.
+     * @throws InterruptedException
+     *            when the current thread is interrupted.
+     */
+    public double invoke(
+            Future<Double> aync)
+                    throws InterruptedException {
+        return toDouble(await(aync, deadline()));
+    }
+    
+    /**
+     * Start the invocations to all the futures with the {@code onTimeout} as the budget of them all.
+     * 
+     * @param futures
+     *            the asynchronous futures.
+     * @return the result values in the order of the futures.
+     * @throws InterruptedException
+     *            when the current thread is interrupted.
+     */
+    public double[] invokeAll(
+            Collection<? extends Future<Double>> futures)
+                    throws InterruptedException {
+        long     deadline = deadline();
+        double[] results  = new double[futures.size()];
+        int      index    = 0;
+        for (Future<Double> future : futures) {
+            results[index++] = toDouble(await(future, deadline));
+        }
+        return results;
+    }
+    
+    private double toDouble(
+            Object outcome)
+                    throws InterruptedException {
+        switch (handlingOf(outcome)) {
+            case VALUE:          return ((Double)outcome).doubleValue();
+            case ON_TIMEOUT:     return this.onTimeout.getAsDouble();
+            case ON_EXCEPTION:   return this.onException.applyAsDouble((RuntimeException)outcome);
+            case ON_CANCELLED:   return this.onCancelled.getAsDouble();
+            case ON_INTERRUPTED: return this.onInterrupted.getAsDouble();
+            default:             return this.orElse;
+        }
+    }
+    
+}
@@ -0,0 +1,90 @@
+package nawaman.papercuts.concurrent.asynctosync;
+
+import java.util.Collection;
+import java.util.concurrent.Future;
+import java.util.function.IntSupplier;
+import java.util.function.ToIntFunction;
+
+/**
+ * The {@link AsyncToSync} specialized for int results.
+ * 
+ * The default value and the handlers are primitive so the fallbacks do not box, and the batch wait returns
+ *   {@code int[]} instead of a list of boxes. The handlers follow the same rules as AsyncToSync (see
+ *   {@link PrimitiveAsyncToSync}).
+ * 
+ * @author NawaMan
+ */
+public class AsyncToInt extends PrimitiveAsyncToSync<AsyncToInt, IntSupplier, ToIntFunction<RuntimeException>> {
+    
+    private int orElse = 0;
+    
+    @Override
+    AsyncToInt self() {
+        return this;
+    }
+    
+    /**
+     * Specify the default value (used when the future is null, the value is null and in case of failure without
+     *   other handlers).
+     * 
+     * @param defaultValue
+     *            the default value.
+     * @return this AsyncToSync.
+     */
+    public AsyncToInt orElse(
+            int defaultValue) {
+        this.orElse    = defaultValue;
+        this.hasOrElse = true;
+        return this;
+    }
+    
+    /**
+     * Start the invocation to the future object.
+     * 
+     * @param aync
+     *            the asynchronous future.
+     * @return the result value.
+     * @throws InterruptedException
+     *            when the current thread is interrupted.
+     */
+    public int invoke(
+            Future<Integer> aync)
+                    throws InterruptedException {
+        return toInt(await(aync, deadline()));
+    }
+    
+    /**
+     * Start the invocations to all the futures with the {@code onTimeout} as the budget of them all.
+     * 
+     * @param futures
+     *            the asynchronous futures.
+     * @return the result values in the order of the futures.
+     * @throws InterruptedException
+     *            when the current thread is interrupted.
+     */
+    public int[] invokeAll(
+            Collection<? extends Future<Integer>> futures)
+                    throws InterruptedException {
+        long  deadline = deadline();
+        int[] results  = new int[futures.size()];
+        int   index    = 0;
+        for (Future<Integer> future : futures) {
+            results[index++] = toInt(await(future, deadline));
+        }
+        return results;
+    }
+    
+    private int toInt(
+            Object outcome)
+                    throws InterruptedException {
+        switch (handlingOf(outcome)) {
+            case VALUE:          return ((Integer)outcome).intValue();
+            case ON_TIMEOUT:     return this.onTimeout.getAsInt();
+            case ON_EXCEPTION:   return this.onException.applyAsInt((RuntimeException)outcome);
+            case ON_CANCELLED:   return this.onCancelled.getAsInt();
+            case ON_INTERRUPTED: return this.onInterrupted.getAsInt();
+            default:             return this.orElse;
+        }
+    }
+    
+}
@@ -0,0 +1,90 @@
+package nawaman.papercuts.concurrent.asynctosync;
+
+import java.util.Collection;
+import java.util.concurrent.Future;
+import java.util.function.LongSupplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * The {@link AsyncToSync} specialized for long results.
+ * 
+ * The default value and the handlers are primitive so the fallbacks do not box, and the batch wait returns
+ *   {@code long[]} instead of a list of boxes. The handlers follow the same rules as AsyncToSync (see
+ *   {@link PrimitiveAsyncToSync}).
+ * 
+ * @author NawaMan
+ */
+public class AsyncToLong extends PrimitiveAsyncToSync<AsyncToLong, LongSupplier, ToLongFunction<RuntimeException>> {
+    
+    private long orElse = 0;
+    
+    @Override
+    AsyncToLong self() {
+        return this;
+    }
+    
+    /**
+     * Specify the default value (used when the future is null, the value is null and in case of failure without
+     *   other handlers).
+     * 
+     * @param defaultValue
+     *            the default value.
+     * @return this AsyncToSync.
+     */
+    public AsyncToLong orElse(
+            long defaultValue) {
+        this.orElse    = defaultValue;
+        this.hasOrElse = true;
+        return this;
+    }
+    
+    /**
+     * Start the invocation to the future object.
+     * 
+     * @param aync
+     *            the asynchronous future.
+     * @return the result value.
+     * @throws InterruptedException
+     *            when the current thread is interrupted.
+     */
+    public long invoke(
+            Future<Long> aync)
+                    throws InterruptedException {
+        return toLong(await(aync, deadline()));
+    }
+    
+    /**
+     * Start the invocations to all the futures with the {@code onTimeout} as the budget of them all.
+     * 
+     * @param futures
+     *            the asynchronous futures.
+     * @return the result values in the order of the futures.
+     * @throws InterruptedException
+     *            when the current thread is interrupted.
+     */
+    public long[] invokeAll(
+            Collection<? extends Future<Long>> futures)
+                    throws InterruptedException {
+        long   deadline = deadline();
+        long[] results  = new long[futures.size()];
+        int    index    = 0;
+        for (Future<Long> future : futures) {
+            results[index++] = toLong(await(future, deadline));
+        }
+        return results;
+    }
+    
+    private long toLong(
+            Object outcome)
+                    throws InterruptedException {
+        switch (handlingOf(outcome)) {
+            case VALUE:          return ((Long)outcome).longValue();
+            case ON_TIMEOUT:     return this.onTimeout.getAsLong();
+            case ON_EXCEPTION:   return this.onException.applyAsLong((RuntimeException)outcome);
+            case ON_CANCELLED:   return this.onCancelled.getAsLong();
+            case ON_INTERRUPTED: return this.onInterrupted.getAsLong();
+            default:             return this.orElse;
+        }
+    }
+    
+}
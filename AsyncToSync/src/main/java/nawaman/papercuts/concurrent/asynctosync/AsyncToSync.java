@@ -1,18 +1,36 @@
 package nawaman.papercuts.concurrent.asynctosync;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Optional;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
-import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * This utility class make it easy to convert asynchronous operation to a synchronous one.
@@ -21,20 +39,53 @@ import java.util.function.Supplier;
  * 
  * This class provides convenient functionality.
  * <ol>
- *   <li>Support both Future and CompletableFuture</li>
+ *   <li>Support both Future and CompletableFuture (and {@link CompletableFutureTask} without an adapter thread)</li>
  *   <li>Default value when exception, cancelled, interrupted or timeout - via {@link AsyncToSync#orElse(...)}.</li>
+ *   <li>Last known good value when exception or timeout - via {@link AsyncToSync#orLastKnownGood()}.</li>
+ *   <li>Speculative delayed hedging - via {@link AsyncToSync#hedge(long, int)}.</li>
+ *   <li>Staying under a request-rate quota - via {@link AsyncToSync#rateLimit(double, int)}.</li>
+ *   <li>Bounded-concurrency parallel map - via {@link AsyncToSync#invokeParallel(List, Function, int)}.</li>
+ *   <li>Results of many futures in completion order - via {@link AsyncToSync#inCompletionOrder(Collection)}.</li>
+ *   <li>Streaming fold over many futures - via {@link AsyncToSync#invokeReduce(Iterable, Object, BiFunction)}.</li>
+ *   <li>Callback-style API without an intermediate future - via {@link AsyncToSync#invokeCallback(Consumer)}.</li>
+ *   <li>Cooperative cancellation of the abandoned work - via
+ *         {@link AsyncToSync#invokeCancellable(Function)}.</li>
+ *   <li>Multi-stage pipeline waited for once - via {@link AsyncToSync#invokePipeline(Pipeline)}.</li>
+ *   <li>Structured fork/join - via {@link AsyncToSync#scopeOnFailure()} and {@link AsyncToSync#scopeOnSuccess()}.</li>
+ *   <li>No blocking of event-loop threads - via {@link AsyncToSync#onNonBlockingThread(Function)} and
+ *         {@link AsyncToSync#invokeAsync(Future)}</li>
  *   <li>Make it easy to do conditional cancellation - via {@link AsyncToSync#parallely(...)}</li>
- *   <li>Make it easy to notify progress - via {@link AsyncToSync#parallely(...)}</li>
+ *   <li>Make it easy to notify progress - via {@link AsyncToSync#parallely(...)} or
+ *         {@link AsyncToSync#periodically(...)}</li>
+ *   <li>Result transformation before the caller wakes up - via {@link AsyncToSync#invoke(Future, Function)}</li>
+ *   <li>Primitive results without boxing - via {@link AsyncToInt}, {@link AsyncToLong} and {@link AsyncToDouble}</li>
+ *   <li>Earliest-deadline-first internal tasks - via {@link DeadlineExecutor}</li>
+ *   <li>Exception handlers by type (with cached dispatch) - via {@link AsyncToSync#onException(Class, Function)}</li>
  *   <li>Standard way of handling exception, cancellation, interrupted and timeout - via `onXXX` methods</li>
  *   <li>Declarative style API - For example timeout time is set on different method call instead of together with `get(...)`</li>
+ *   <li>Executor sizing from measured wait and service time - via {@link AsyncToSync#measureSizing()}</li>
+ *   <li>Fault injection to exercise the fallbacks under load - via
+ *         {@link AsyncToSync#injectFaults(FaultInjection)}</li>
+ *   <li>Live tuning of named policies over JMX - via {@link PolicyRegistry}</li>
+ *   <li>Cheap failures - exceptions created by this class can be made stackless via {@link AsyncToSync#stackless()}</li>
  * </ol>
  * 
  * @author NawaMan
  */
 public class AsyncToSync<T> {
-
+    
+    private static final Object DEFAULT_KEY = new Object();
+    
+    private static final Runnable NO_SIDE_TASKS = ()->{};
+    
+    /** The maximum number of futures waited for at a time by {@link AsyncToSync#invokeReduce}. */
+    static final int REDUCE_WINDOW = 1024;
+    
+    
     private Optional<Function<RuntimeException, T>> onException = Optional.empty();
     
+    private ExceptionRoutes<T> exceptionRoutes = null;
+    
     private Optional<Supplier<T>> onCancelled = Optional.empty();
     
     private Optional<Supplier<T>> onInterrupted = Optional.empty();
@@ -49,9 +100,43 @@ public class AsyncToSync<T> {
     
     private Optional<Executor> parallelyExecutor = Optional.empty();
     
+    private Optional<Executor> internalExecutor = Optional.empty();
+    
+    private Optional<Consumer<Future<T>>> periodically = Optional.empty();
+    
+    private long periodicallyInitialDelay = 0;
+    
+    private long periodicallyPeriod = 0;
+    
+    private boolean stackless = false;
+    
+    private Optional<LastKnownGoods<T>> lastKnownGoods = Optional.empty();
+    
+    private Optional<Hedging> hedging = Optional.empty();
+    
+    private Optional<TokenBucket> rateLimit = Optional.empty();
+    
+    private String name = null;
+    
+    private WaitRegistry waitRegistry = null;
+    
+    private SizingAdvisor sizingAdvisor = null;
+    
+    private FaultInjection faultInjection = null;
+    
+    private int maxConcurrent = 0;
+    
+    private volatile PolicySettings tunedSettings = null;
+    
+    private final AtomicInteger inFlight = new AtomicInteger();
+    
+    private final LongAdder rejected = new LongAdder();
+    
+    private Optional<Function<Future<T>, T>> onNonBlockingThread = Optional.empty();
+    
     /**
      * Add a consumer to be run in parallel with the future.
-     * The Runnable will be cancelled once the future invocation is completed.
+     * The Runnable will be cancelled (and its thread interrupted) once the future invocation is completed.
      * This method is useful for something like conditional cancellation.
      * 
      * @param parallely
@@ -60,14 +145,14 @@ public class AsyncToSync<T> {
      */
     public AsyncToSync<T> parallely(
             Consumer<Future<T>> parallely) {
-        this.parallelyExecutor = Optional.of(ForkJoinPool.commonPool());
+        this.parallelyExecutor = Optional.empty();
         this.parallely = Optional.ofNullable(parallely);
         return this;
     }
     
     /**
      * Add a runnable to be run in parallel with the future.
-     * The Runnable will be cancelled once the future invocation is completed.
+     * The Runnable will be cancelled (and its thread interrupted) once the future invocation is completed.
      * This method is useful for something like progress report.
      * 
      * @param parallely
@@ -76,7 +161,7 @@ public class AsyncToSync<T> {
      */
     public AsyncToSync<T> parallely(
             Runnable parallely) {
-        this.parallelyExecutor = Optional.of(ForkJoinPool.commonPool());
+        this.parallelyExecutor = Optional.empty();
         if (parallely != null) {
             this.parallely = Optional.ofNullable(future->
                     parallely.run());
@@ -86,7 +171,7 @@ public class AsyncToSync<T> {
     
     /**
      * Add a consumer to be run in parallel with the future.
-     * The Runnable will be cancelled once the future invocation is completed.
+     * The Runnable will be cancelled (and its thread interrupted) once the future invocation is completed.
      * This method is useful for something like conditional cancellation.
      * 
      * @param parallely
@@ -103,7 +188,7 @@ public class AsyncToSync<T> {
     
     /**
      * Add a runnable to be run in parallel with the future.
-     * The Runnable will be cancelled once the future invocation is completed.
+     * The Runnable will be cancelled (and its thread interrupted) once the future invocation is completed.
      * This method is useful for something like progress report.
      * 
      * @param executor
@@ -122,6 +207,76 @@ public class AsyncToSync<T> {
         return this;
     }
     
+    /**
+     * Specify the executor of the internal tasks -- the adapters waiting for the plain futures (those that are neither
+     *   a CompletableFuture nor a {@link CompletableFutureTask}).
+     * Each adapter blocks until its future completes or its caller's deadline passes, so the default is a pool of
+     *   threads started as needed and shared by all AsyncToSync. A {@link DeadlineExecutor} serves the adapters
+     *   earliest deadline first and drops those whose deadline has passed -- but it must have enough threads for all
+     *   the plain futures waited for at the same time.
+     * 
+     * @param executor
+     *            the executor of the internal tasks (or {@code null} for the default).
+     * @return this AsyncToSync.
+     */
+    public AsyncToSync<T> internalExecutor(
+            Executor executor) {
+        this.internalExecutor = Optional.ofNullable(executor);
+        return this;
+    }
+    
+    /**
+     * Add a consumer to be run periodically (at a fixed rate) while waiting for the future.
+     * The ticks are run on a scheduler shared by all AsyncToSync and are stopped once the future invocation is
+     *   completed or timeout -- the invocation returns without waiting for the tick in progress (if any) to finish.
+     *   This method is useful for something like progress report or keep-alive.
+     * 
+     * The consumer must be short and must not block as it shares a handful of threads with all the other ticks.
+     * If a tick throws an exception, the subsequent ticks are suppressed.
+     * 
+     * @param initialDelay
+     *            the delay in millisecond before the first tick.
+     * @param period
+     *            the period in millisecond between the ticks.
+     * @param periodically
+     *            the consumer to be run periodically.
+     * @return this AsyncToSync.
+     */
+    public AsyncToSync<T> periodically(
+            long                initialDelay,
+            long                period,
+            Consumer<Future<T>> periodically) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("Period must be positive: " + period);
+        }
+        this.periodicallyInitialDelay = initialDelay;
+        this.periodicallyPeriod = period;
+        this.periodically = Optional.ofNullable(periodically);
+        return this;
+    }
+    
+    /**
+     * Add a runnable to be run periodically (at a fixed rate) while waiting for the future.
+     * The ticks are run on a scheduler shared by all AsyncToSync and are stopped once the future invocation is
+     *   completed or timeout -- the invocation returns without waiting for the tick in progress (if any) to finish.
+     *   This method is useful for something like progress report or keep-alive.
+     * 
+     * @param initialDelay
+     *            the delay in millisecond before the first tick.
+     * @param period
+     *            the period in millisecond between the ticks.
+     * @param periodically
+     *            the runnable to be run periodically.
+     * @return this AsyncToSync.
+     */
+    public AsyncToSync<T> periodically(
+            long     initialDelay,
+            long     period,
+            Runnable periodically) {
+        Consumer<Future<T>> consumer = (periodically != null) ? future->periodically.run() : null;
+        return this.periodically(initialDelay, period, consumer);
+    }
+    
     /**
      * Specify what to return in case of exception.
      * 
@@ -185,6 +340,29 @@ public class AsyncToSync<T> {
         return this;
     }
     
+    /**
+     * Specify what to do in case of the exception of the given type (including its sub types).
+     * The handler registered for the most specific type is used and it takes precedence over the other
+     *   {@code onException} handlers. If no handler matches the exception, the causes are matched (so, for example, a
+     *   checked exception wrapped in {@link AsyncToSyncException} can be handled by its own type).
+     * 
+     * @param type
+     *            the exception type.
+     * @param onException
+     *            the function of the exception to the result.
+     * @return this AsyncToSync.
+     */
+    @SuppressWarnings("unchecked")
+    public <E extends Throwable> AsyncToSync<T> onException(
+            Class<E>                         type,
+            Function<? super E, ? extends T> onException) {
+        if ((type != null) && (onException != null)) {
+            ExceptionRoutes<T> routes = (this.exceptionRoutes != null) ? this.exceptionRoutes : new ExceptionRoutes<>();
+            this.exceptionRoutes = routes.with(type, exception->onException.apply((E)exception));
+        }
+        return this;
+    }
+    
     /**
      * Specify what to return in case of cancellation.
      * 
@@ -288,6 +466,7 @@ public class AsyncToSync<T> {
             long waitTime) {
         this.waitTime = waitTime;
         this.onTimeout = Optional.empty();
+        retune(settings->settings.withWaitTime(waitTime));
         return this;
     }
     
@@ -304,6 +483,7 @@ public class AsyncToSync<T> {
             long waitTime,
             Runnable onTimeout) {
         this.waitTime = waitTime;
+        retune(settings->settings.withWaitTime(waitTime));
         if (onTimeout != null) {
             this.onTimeout = Optional.ofNullable(()->{
                 onTimeout.run();
@@ -327,6 +507,7 @@ public class AsyncToSync<T> {
             Supplier<T> onTimeout) {
         this.waitTime = waitTime;
         this.onTimeout = Optional.ofNullable(onTimeout);
+        retune(settings->settings.withWaitTime(waitTime));
         return this;
     }
     
@@ -357,6 +538,385 @@ public class AsyncToSync<T> {
         return this;
     }
     
+    /**
+     * Specify to return the last known good value (the last successful result) in case of timeout or exception.
+     * The future that is still running when the timeout occurs will refresh the last known good value once it
+     *   completes successfully.
+     * 
+     * The last known good values are kept by this AsyncToSync so the same AsyncToSync must be reused across
+     *   invocations. Use {@link AsyncToSync#invokeFor(Object, Future)} to keep the values by key.
+     * When there is no last known good value, the invocation falls back to the other handlers.
+     * At most 1024 keys are kept (see {@link AsyncToSync#orLastKnownGood(int)}).
+     * 
+     * Note that, to refresh the value, the completion of each future is observed even after the caller stops waiting,
+     *   so a future that never completes keeps that hook (and this AsyncToSync) until it does.
+     * 
+     * @return this AsyncToSync.
+     */
+    public AsyncToSync<T> orLastKnownGood() {
+        if (!this.lastKnownGoods.isPresent()) {
+            this.lastKnownGoods = Optional.of(new LastKnownGoods<>(LastKnownGoods.DEFAULT_MAX_KEYS));
+        }
+        retune(settings->settings.withLastKnownGoodEnabled(true));
+        return this;
+    }
+    
+    /**
+     * Specify to return the last known good value (see {@link AsyncToSync#orLastKnownGood()}) keeping at most the
+     *   given number of keys. Once there are more keys, the keys added first are evicted.
+     * 
+     * @param maxKeys
+     *            the maximum number of keys.
+     * @return this AsyncToSync.
+     */
+    public AsyncToSync<T> orLastKnownGood(
+            int maxKeys) {
+        this.lastKnownGoods = Optional.of(new LastKnownGoods<>(maxKeys));
+        retune(settings->settings.withLastKnownGoodEnabled(true));
+        return this;
+    }
+    
+    /**
+     * Returns the last known good value of the given key or {@code null} if there is none.
+     * 
+     * @param key
+     *            the key.
+     * @return the last known good value.
+     */
+    public T getLastKnownGood(
+            Object key) {
+        Object theKey = (key != null) ? key : DEFAULT_KEY;
+        return this.lastKnownGoods
+                .map(values -> values.get(theKey))
+                .orElse(null);
+    }
+    
+    /**
+     * Hedge the supplier-based invocation (see {@link AsyncToSync#invokeWith(Supplier)}) after the given delay.
+     * If the first attempt has not completed after the delay, one more attempt is issued and the first one to
+     *   succeed is taken while the others are cancelled. The {@code onTimeout} is the budget of the whole call.
+     * 
+     * The hedges are issued by the parallely executor (see {@link AsyncToSync#parallely(Executor, Runnable)}).
+     * 
+     * @param delay
+     *            the delay in millisecond before each hedge.
+     * @param maxHedges
+     *            the maximum number of extra attempts.
+     * @return this AsyncToSync.
+     */
+    public AsyncToSync<T> hedge(
+            long delay,
+            int  maxHedges) {
+        if (delay < 0) {
+            throw new IllegalArgumentException("Delay must not be negative: " + delay);
+        }
+        this.hedging = Optional.of(new Hedging(delay, maxHedges));
+        retune(settings->settings.withHedgingEnabled(true));
+        return this;
+    }
+    
+    /**
+     * Hedge the supplier-based invocation (see {@link AsyncToSync#invokeWith(Supplier)}) after the observed p95
+     *   latency of this AsyncToSync.
+     * No hedge is issued until enough latencies are observed.
+     * 
+     * @param maxHedges
+     *            the maximum number of extra attempts.
+     * @return this AsyncToSync.
+     */
+    public AsyncToSync<T> hedgeAtP95(
+            int maxHedges) {
+        this.hedging = Optional.of(new Hedging(-1, maxHedges));
+        retune(settings->settings.withHedgingEnabled(true));
+        return this;
+    }
+    
+    /**
+     * Returns the number of hedges fired by this AsyncToSync.
+     * 
+     * @return the number of hedges fired.
+     */
+    public long getHedgesFired() {
+        return this.hedging.map(Hedging::fired).orElse(0L);
+    }
+    
+    /**
+     * Returns the number of hedges that won (completed before the original attempt) for this AsyncToSync.
+     * 
+     * @return the number of hedges won.
+     */
+    public long getHedgesWon() {
+        return this.hedging.map(Hedging::won).orElse(0L);
+    }
+    
+    /**
+     * Limit the rate of the supplier-based invocation (see {@link AsyncToSync#invokeWith(Supplier)}) with a token
+     *   bucket taken from before the supplier is called.
+     * 
+     * A caller without a token waits for one as long as the wait time (see {@link AsyncToSync#onTimeout(long)})
+     *   allows and the rest of the wait time is left for the future. If no token is due within the wait time, the
+     *   supplier is not called and the timeout value is returned right away. A caller on a non-blocking thread (given
+     *   to the handler, see {@link AsyncToSync#onNonBlockingThread(Function)}) never waits for a token. Each hedge also
+     *   takes a token and is skipped if none is available.
+     * The invocation rejected by the concurrency limit (see {@link AsyncToSync#maxConcurrent(int)}) takes no token and
+     *   the caller interrupted while waiting for its token gives it back.
+     * 
+     * @param permitsPerSecond
+     *            the sustained number of invocations per second.
+     * @param burst
+     *            the number of invocations allowed in a burst.
+     * @return this AsyncToSync.
+     */
+    public AsyncToSync<T> rateLimit(
+            double permitsPerSecond,
+            int    burst) {
+        this.rateLimit = Optional.of(new TokenBucket(permitsPerSecond, burst, true));
+        return this;
+    }
+    
+    /**
+     * Limit the rate of the supplier-based invocation (see {@link AsyncToSync#invokeWith(Supplier)}) with a token
+     *   bucket taken from before the supplier is called.
+     * 
+     * A caller without a token does not wait -- the supplier is not called and the default value (see
+     *   {@link AsyncToSync#orElse(Supplier)}) is returned right away.
+     * 
+     * @param permitsPerSecond
+     *            the sustained number of invocations per second.
+     * @param burst
+     *            the number of invocations allowed in a burst.
+     * @return this AsyncToSync.
+     */
+    public AsyncToSync<T> rateLimitOrElse(
+            double permitsPerSecond,
+            int    burst) {
+        this.rateLimit = Optional.of(new TokenBucket(permitsPerSecond, burst, false));
+        return this;
+    }
+    
+    /**
+     * Returns the number of invocations and hedges turned away by the rate limit of this AsyncToSync.
+     * 
+     * @return the number of throttled invocations.
+     */
+    public long getThrottledCount() {
+        return this.rateLimit.map(TokenBucket::throttled).orElse(0L);
+    }
+    
+    /**
+     * Specify the name of this AsyncToSync (used as the policy name in the reports).
+     * 
+     * @param name
+     *            the name.
+     * @return this AsyncToSync.
+     */
+    public AsyncToSync<T> named(
+            String name) {
+        this.name = name;
+        return this;
+    }
+    
+    /**
+     * Returns the name of this AsyncToSync or {@code null} if not named.
+     * 
+     * @return the name.
+     */
+    public String getName() {
+        return this.name;
+    }
+    
+    /**
+     * Register the in-flight waits of this AsyncToSync in the given registry (or stop registering if {@code null}).
+     * 
+     * @param waitRegistry
+     *            the registry.
+     * @return this AsyncToSync.
+     */
+    public AsyncToSync<T> registerWaitsIn(
+            WaitRegistry waitRegistry) {
+        this.waitRegistry = waitRegistry;
+        return this;
+    }
+    
+    /**
+     * Inject the faults into the invocations to force the fallback paths (for example, in a load test).
+     * Without the fault injection (the default), there is no cost other than a null check.
+     * 
+     * Note that the delayed futures observe the completion of the original future, so the delay of a future that
+     *   never completes keeps its hook on that future until it does.
+     * 
+     * @param faultInjection
+     *            the fault injection (or {@code null} to stop injecting).
+     * @return this AsyncToSync.
+     */
+    public AsyncToSync<T> injectFaults(
+            FaultInjection faultInjection) {
+        this.faultInjection = faultInjection;
+        retune(settings->settings.withFaultInjectionEnabled(faultInjection != null));
+        return this;
+    }
+    
+    /**
+     * Limit the number of the concurrent invocations (see {@link AsyncToSync#invokeFor(Object, Future)}).
+     * An invocation beyond the limit is not waited for and returns the default value right away. A batch (the
+     *   parallel and reduce invocations and the join of a scope) counts as one invocation and gets the default value
+     *   for each element when rejected; with {@link AsyncToSync#inCompletionOrder(Collection)}, each wait for the next
+     *   element counts and a rejected one gets the element already completed (if any) or the default value.
+     * Without a limit (the default), the invocations are not counted at all.
+     * 
+     * @param maxConcurrent
+     *            the maximum number of concurrent invocations or 0 for no limit.
+     * @return this AsyncToSync.
+     */
+    public AsyncToSync<T> maxConcurrent(
+            int maxConcurrent) {
+        if (maxConcurrent < 0) {
+            throw new IllegalArgumentException("Maximum concurrent invocations must not be negative: " + maxConcurrent);
+        }
+        this.maxConcurrent = maxConcurrent;
+        retune(settings->settings.withMaxConcurrent(maxConcurrent));
+        return this;
+    }
+    
+    /**
+     * Returns the settings in effect -- the tuned settings if tuned through a {@link PolicyRegistry} or the settings
+     *   this AsyncToSync is built with.
+     * 
+     * @return the settings.
+     */
+    public PolicySettings getSettings() {
+        PolicySettings tuned = this.tunedSettings;
+        return (tuned != null) ? tuned : builtSettings();
+    }
+    
+    PolicySettings builtSettings() {
+        return new PolicySettings(
+                this.waitTime,
+                this.maxConcurrent,
+                this.hedging.isPresent(),
+                this.lastKnownGoods.isPresent(),
+                this.faultInjection != null);
+    }
+    
+    /**
+     * Publish the tuned settings (or {@code null} to go back to the built settings) to the coming invocations.
+     */
+    void tune(
+            PolicySettings settings) {
+        this.tunedSettings = settings;
+    }
+    
+    /**
+     * Carry the change made by a builder method into the tuned settings (if tuned) so the latest change wins either
+     *   way. Serialized with {@link PolicyRegistry#update(String, UnaryOperator)}.
+     */
+    private void retune(
+            UnaryOperator<PolicySettings> change) {
+        synchronized (this) {
+            PolicySettings tuned = this.tunedSettings;
+            if (tuned != null) {
+                this.tunedSettings = change.apply(tuned);
+            }
+        }
+    }
+    
+    int getInFlight() {
+        return this.inFlight.get();
+    }
+    
+    long getRejectedCount() {
+        return this.rejected.sum();
+    }
+    
+    /**
+     * Measure the wait time of the callers and the service time of the asynchronous work to advise the sizing of the
+     *   executors and the caller threads (see {@link SizingAdvisor}).
+     * 
+     * Note that the completion of each future is observed so the measuring of the futures that never complete adds
+     *   to their memory until they do.
+     * 
+     * @return this AsyncToSync.
+     */
+    public AsyncToSync<T> measureSizing() {
+        if (this.sizingAdvisor == null) {
+            this.sizingAdvisor = new SizingAdvisor();
+        }
+        return this;
+    }
+    
+    /**
+     * Returns the sizing advisor or {@code null} if the sizing is not measured (see
+     *   {@link AsyncToSync#measureSizing()}).
+     * 
+     * @return the sizing advisor.
+     */
+    public SizingAdvisor getSizingAdvisor() {
+        return this.sizingAdvisor;
+    }
+    
+    /**
+     * Set the handler of the invocations made from a non-blocking thread (see {@link NonBlockingThreads}).
+     * Instead of blocking the thread, the handler is given the future and its result is returned. The handler may
+     *   return a fallback value, hand the future off to {@link AsyncToSync#invokeAsync(Future)} or throw.
+     * The handler is called on the non-blocking thread and its value is returned right away as the result of the
+     *   invocation -- so it cannot give the value of the future later. To get that value without blocking, use
+     *   {@link AsyncToSync#invokeAsync(Future)} from the non-blocking code instead.
+     * Each such invocation is counted in {@link NonBlockingThreads#getBlockingCallCount()}.
+     * The invocations of many futures ({@code invokeParallel}, {@code invokeReduce}, {@code inCompletionOrder} and
+     *   the joins of the structured scopes) give the handler the future of each element that would be waited for.
+     * 
+     * Without the handler, the current thread is not checked at all.
+     * 
+     * @param onNonBlockingThread
+     *            the handler (or {@code null} to always block).
+     * @return this AsyncToSync.
+     */
+    public AsyncToSync<T> onNonBlockingThread(
+            Function<Future<T>, T> onNonBlockingThread) {
+        this.onNonBlockingThread = Optional.ofNullable(onNonBlockingThread);
+        return this;
+    }
+    
+    /**
+     * Fail fast with {@link IllegalStateException} when an invocation is made from a non-blocking thread.
+     * 
+     * @return this AsyncToSync.
+     */
+    public AsyncToSync<T> failOnNonBlockingThread() {
+        return this.onNonBlockingThread(future->{
+            String policy = (this.name != null) ? (" (" + this.name + ")") : "";
+            throw new IllegalStateException(
+                    "Blocking invocation" + policy + " on non-blocking thread: " + Thread.currentThread().getName());
+        });
+    }
+    
+    /**
+     * Make the exceptions created by this AsyncToSync stackless.
+     * This includes the wrapper of checked exceptions as well as the cancellations made by this AsyncToSync -- a new
+     *   exception each time as it may be thrown to the caller (the internal timeout signal, never thrown, is always a
+     *   shared stackless one).
+     * The original cause is kept but no stack trace is captured,
+     *   so failure storms do not turn into CPU storms.
+     * 
+     * @return this AsyncToSync.
+     */
+    public AsyncToSync<T> stackless() {
+        return this.stackless(true);
+    }
+    
+    /**
+     * Specify if the exceptions created by this AsyncToSync should be stackless.
+     * 
+     * @param stackless
+     *            true if the exceptions should be created without stack trace.
+     * @return this AsyncToSync.
+     */
+    public AsyncToSync<T> stackless(
+            boolean stackless) {
+        this.stackless = stackless;
+        return this;
+    }
+    
     /**
      * Make this sync a careless call in which there is no need to handle {@link InterruptedException} for the sync
      *   thread.
@@ -425,54 +985,984 @@ public class AsyncToSync<T> {
     public T invoke(
             Future<T> aync)
                     throws InterruptedException {
-        CompletableFuture<T> future = prepareFuture(aync);
-        if (future == null) {
-            T defaultValue = prepareDefaultValue();
-            return defaultValue;
+        T result = this.invokeFor(DEFAULT_KEY, aync);
+        return result;
+    }
+    
+    /**
+     * Start the invocation to the future object whose value is transformed to the result by the completing thread
+     *   before the waiting thread is woken up -- so the transformation (such as deserialization) is not added to the
+     *   critical path of the caller. The exception thrown by the transformation is handled by the handlers.
+     * If no one is waiting anymore when the future completes (for example, after the timeout), the transformation is
+     *   skipped.
+     * 
+     * @param aync
+     *            the asynchronous future.
+     * @param transform
+     *            the transformation.
+     * @return the result value.
+     * @throws InterruptedException
+     *            when the current thread is interrupted.
+     */
+    public <S> T invoke(
+            Future<S>                        aync,
+            Function<? super S, ? extends T> transform)
+                    throws InterruptedException {
+        return this.invoke(aync, transform, null);
+    }
+    
+    /**
+     * Start the invocation to the future object whose value is transformed to the result by the given executor
+     *   before the waiting thread is woken up (see {@link AsyncToSync#invoke(Future, Function)}).
+     * 
+     * @param aync
+     *            the asynchronous future.
+     * @param transform
+     *            the transformation.
+     * @param executor
+     *            the executor of the transformation (or {@code null} to use the completing thread).
+     * @return the result value.
+     * @throws InterruptedException
+     *            when the current thread is interrupted.
+     */
+    public <S> T invoke(
+            Future<S>                        aync,
+            Function<? super S, ? extends T> transform,
+            Executor                         executor)
+                    throws InterruptedException {
+        if ((aync == null) || (transform == null)) {
+            @SuppressWarnings("unchecked")
+            Future<T> untransformed = (Future<T>)aync;
+            return this.invoke(untransformed);
         }
         
-        CountDownLatch latch = new CountDownLatch(1);
-        AtomicReference<T> resultRef = new AtomicReference<>();
-        AtomicReference<RuntimeException> exceptionRef = new AtomicReference<>();
-        future.whenComplete((value, exception) -> {
-            RuntimeException runtimeException = prepareRuntimeException(exception);
-            exceptionRef.set(runtimeException);
-            
-            resultRef.set(value);
-            latch.countDown();
-        });
+        PolicySettings tuned       = this.tunedSettings;
+        long           submittedAt = submittedAt(aync);
+        if (isOnNonBlockingThread()) {
+            // The handler takes the transformed future as is -- it is not ours to give up.
+            return handleNonBlockingThread(transform(aync, transform, executor, tuned));
+        }
         
-        Optional<CompletableFuture<Void>> atSameTime = Optional.empty();
-        try {
-            atSameTime = this.parallely
-                    .map(consumer-> CompletableFuture.runAsync(()->{
-                        consumer.accept(future);
-                    }, parallelyExecutor.orElse(ForkJoinPool.commonPool())));
-            
-            boolean isTimeout = awaitInvocation(latch);
-            if (isTimeout) {
+        // The transformed future is ours, so it is given up (not transformed once the source completes) only when this
+        //   thread gives up waiting for it.
+        return admit(tuned, this::prepareDefaultValue, ()->{
+            CompletableFuture<T> transformed = transform(aync, transform, executor, tuned);
+            return awaitFor(null, transformed, tuned, submittedAt, true, null);
+        });
+    }
+    
+    private <S> CompletableFuture<T> transform(
+            Future<S>                        aync,
+            Function<? super S, ? extends T> transform,
+            Executor                         executor,
+            PolicySettings                   tuned) {
+        CompletableFuture<S> source = prepareFuture(aync, waitTime(tuned), tuned);
+        return (executor != null)
+                ? source.thenApplyAsync(transform, executor)
+                : source.thenApply(transform);
+    }
+    
+    /**
+     * Start the invocation to the future object without blocking the current thread.
+     * The result (with all the handlers of this AsyncToSync applied) is returned through the returned future. This is
+     *   the path to use from non-blocking threads.
+     * 
+     * No thread is held for the wait: the completion of a CompletableFuture (or a {@link CompletableFutureTask}) is
+     *   observed and the timeout is scheduled on a shared scheduler. Only a plain future needs a thread of the
+     *   internal executor to wait for it (the same adapter as a blocking invocation). As no thread is waiting, the
+     *   invocation is not registered as a wait (see {@link AsyncToSync#registerWaitsIn(WaitRegistry)}).
+     * 
+     * @param aync
+     *            the asynchronous future.
+     * @return the future of the result value.
+     */
+    public CompletableFuture<T> invokeAsync(
+            Future<T> aync) {
+        PolicySettings tuned         = this.tunedSettings;
+        int            maxConcurrent = maxConcurrent(tuned);
+        boolean        counted       = (maxConcurrent != 0);
+        if (counted && !enter(maxConcurrent)) {
+            return new AsyncInvocation(tuned, false).resolve(Outcome.noFuture());
+        }
+        
+        AsyncInvocation      invocation = new AsyncInvocation(tuned, counted);
+        Long                 waitTime   = waitTime(tuned);
+        SizingAdvisor        advisor    = this.sizingAdvisor;
+        long                 submitted  = submittedAt(aync);
+        CompletableFuture<T> prepared   = prepareFuture(aync, waitTime, tuned);
+        if (prepared == null) {
+            return invocation.resolve(Outcome.noFuture());
+        }
+        boolean isAdapter = !(aync instanceof CompletableFuture) && !(aync instanceof CompletableFutureTask);
+        CompletableFuture<T> future = observe(prepared, DEFAULT_KEY, tuned, advisor, submitted);
+        return invocation.await(future, isAdapter ? prepared : null, waitTime);
+    }
+    
+    /**
+     * Start the invocation to the future from the given supplier.
+     * The supplier may be called again if this AsyncToSync is hedged (see {@link AsyncToSync#hedge(long, int)}).
+     * 
+     * @param supplier
+     *            the supplier of the asynchronous future.
+     * @return the result value.
+     * @throws InterruptedException
+     *            when the current thread is interrupted.
+     */
+    public T invokeWith(
+            Supplier<? extends CompletableFuture<T>> supplier)
+                    throws InterruptedException {
+        if (supplier == null) {
+            return this.invoke((Future<T>)null);
+        }
+        PolicySettings tuned = this.tunedSettings;
+        if (isOnNonBlockingThread()) {
+            // The handler takes the future without a wait to be counted.
+            return supplyWithin(supplier, tuned, true, null);
+        }
+        
+        // Admitted before the token is taken so the rejected invocation does not spend one.
+        return admit(tuned, this::prepareDefaultValue, ()->supplyWithin(supplier, tuned, false, null));
+    }
+    
+    /**
+     * Take the token (if rate limited) and call the supplier (hedged if so) -- then wait for the future or, on a
+     *   non-blocking thread (as checked once by the caller), give it to the handler. The cancellation token (if any)
+     *   is tripped when the wait times out.
+     */
+    private T supplyWithin(
+            Supplier<? extends CompletableFuture<T>> supplier,
+            PolicySettings                           tuned,
+            boolean                                  isNonBlocking,
+            CancellationToken                        token)
+                    throws InterruptedException {
+        if (this.rateLimit.isPresent()) {
+            TokenBucket bucket   = this.rateLimit.get();
+            Long        waitTime = waitTime(tuned);
+            long        maxWait  = 0;
+            if (bucket.waitsForToken() && !isNonBlocking) {
+                maxWait = (waitTime != null) ? TimeUnit.MILLISECONDS.toNanos(waitTime) : Long.MAX_VALUE;
+            }
+            long tokenWait = bucket.reserve(maxWait);
+            if (tokenWait == TokenBucket.THROTTLED) {
+                return bucket.waitsForToken() ? prepareTimeout() : prepareDefaultValue();
+            }
+            if (tokenWait > 0) {
+                long waitStart = System.nanoTime();
+                try {
+                    TimeUnit.NANOSECONDS.sleep(tokenWait);
+                } catch (InterruptedException exception) {
+                    // The token is not used, so let the next caller have it.
+                    bucket.refund();
+                    throw exception;
+                }
+                if (waitTime != null) {
+                    // The token wait is a part of the wait time.
+                    long waited    = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - waitStart);
+                    long remaining = Math.max(0, waitTime - waited);
+                    tuned = ((tuned != null) ? tuned : builtSettings()).withWaitTime(remaining);
+                }
+            }
+        }
+        if (!this.hedging.isPresent() || ((tuned != null) && !tuned.isHedgingEnabled())) {
+            long      submittedAt = System.nanoTime();
+            Future<T> future      = supplier.get();
+            return isNonBlocking
+                    ? handleNonBlockingThread(future)
+                    : awaitFor(DEFAULT_KEY, future, tuned, submittedAt, false, token);
+        }
+        
+        long submittedAt = System.nanoTime();
+        Hedging.Call<T> call = this.hedging.get().call(rateLimitedHedges(supplier), this.stackless, parallelyExecutor());
+        if (isNonBlocking) {
+            // No one waits here -- the hedging goes on until the future given to the handler completes.
+            return handleNonBlockingThread(call.result());
+        }
+        try {
+            T result = awaitFor(DEFAULT_KEY, call.result(), tuned, submittedAt, false, token);
+            return result;
+        } finally {
+            // The timeout is the budget of the whole call.
+            call.stopHedging();
+            if (!isKeepingLastKnownGood(tuned)) {
+                call.result().completeExceptionally(timeoutSignal());
+            }
+        }
+    }
+    
+    private Supplier<? extends CompletableFuture<T>> rateLimitedHedges(
+            Supplier<? extends CompletableFuture<T>> supplier) {
+        if (!this.rateLimit.isPresent()) {
+            return supplier;
+        }
+        // The first attempt already has its token.
+        TokenBucket   bucket   = this.rateLimit.get();
+        AtomicInteger attempts = new AtomicInteger();
+        return ()->{
+            if ((attempts.getAndIncrement() > 0) && !bucket.tryAcquire()) {
+                CompletableFuture<T> skipped = new CompletableFuture<>();
+                String message = "The hedge is throttled by the rate limit.";
+                skipped.completeExceptionally(new RejectedExecutionException(message));
+                return skipped;
+            }
+            return supplier.get();
+        };
+    }
+    
+    /**
+     * Start the invocation to the future from the given call which is given a {@link CancellationToken}.
+     * The token is tripped once no one is waiting for the result -- when the wait times out
+     *   ({@link CancellationToken.Reason#TIMEOUT}) or the current thread is interrupted
+     *   ({@link CancellationToken.Reason#INTERRUPTED}) -- so the asynchronous work can stop early and free its
+     *   resources. The call may be made again if this AsyncToSync is hedged. The call is not made when the invocation
+     *   is rejected (see {@link AsyncToSync#maxConcurrent(int)}) and, on a non-blocking thread, the future given to
+     *   the handler is left running with the token untouched.
+     * When the last known good value is kept (see {@link AsyncToSync#orLastKnownGood()}), the token is not tripped on
+     *   timeout as the future still running is expected to refresh the value.
+     * 
+     * @param call
+     *            the call returning the asynchronous future.
+     * @return the result value.
+     * @throws InterruptedException
+     *            when the current thread is interrupted.
+     */
+    public T invokeCancellable(
+            Function<? super CancellationToken, ? extends CompletableFuture<T>> call)
+                    throws InterruptedException {
+        if (call == null) {
+            return this.invoke((Future<T>)null);
+        }
+        
+        CancellationToken                        token    = new CancellationToken();
+        Supplier<? extends CompletableFuture<T>> supplier = ()->call.apply(token);
+        PolicySettings                           tuned    = this.tunedSettings;
+        if (isOnNonBlockingThread()) {
+            // The handler has the future and no one here gives up on it -- so the token is not tripped.
+            return supplyWithin(supplier, tuned, true, null);
+        }
+        
+        try {
+            // The token is tripped only by the wait that times out -- not when rejected nor when the work fails.
+            return admit(tuned, this::prepareDefaultValue, ()->supplyWithin(supplier, tuned, false, token));
+        } catch (InterruptedException exception) {
+            token.trip(CancellationToken.Reason.INTERRUPTED);
+            throw exception;
+        }
+    }
+    
+    /**
+     * Start the invocation to the pipeline and wait for its final stage only once.
+     * The {@code onTimeout} of this AsyncToSync is the deadline of the whole pipeline and the handlers are applied to
+     *   the failure of the pipeline (the stage failures without fallback).
+     * When this invocation returns, the unfinished stage is cancelled and no further stage is started.
+     * 
+     * @param pipeline
+     *            the pipeline.
+     * @return the result value.
+     * @throws InterruptedException
+     *            when the current thread is interrupted.
+     */
+    @SuppressWarnings("unchecked")
+    public T invokePipeline(
+            Pipeline<? extends T> pipeline)
+                    throws InterruptedException {
+        if (pipeline == null) {
+            return this.invoke((Future<T>)null);
+        }
+        
+        Pipeline.Run<? extends T> run = pipeline.run();
+        try {
+            T result = this.invoke((Future<T>)run.result());
+            return result;
+        } finally {
+            run.stop();
+        }
+    }
+    
+    /**
+     * Start the invocations of the asynchronous function for all the inputs while keeping at most the given number of
+     *   futures in flight. The next input is started as soon as any in-flight future completes.
+     * 
+     * The handlers of this AsyncToSync are applied to each element and {@code onTimeout} is the budget of the whole
+     *   batch -- the elements not completed by then get the timeout value and the inputs not yet started are never
+     *   started.
+     * 
+     * @param inputs
+     *            the inputs.
+     * @param function
+     *            the asynchronous function.
+     * @param parallelism
+     *            the maximum number of futures in flight.
+     * @return the results in the same order as the inputs.
+     * @throws InterruptedException
+     *            when the current thread is interrupted.
+     */
+    public <I> List<T> invokeParallel(
+            List<? extends I>                                   inputs,
+            Function<? super I, ? extends CompletableFuture<T>> function,
+            int                                                 parallelism)
+                    throws InterruptedException {
+        if ((inputs == null) || inputs.isEmpty()) {
+            return new ArrayList<>();
+        }
+        
+        PolicySettings       tuned  = this.tunedSettings;
+        ParallelWindow<I, T> window = new ParallelWindow<>(inputs, input->withFaults(function.apply(input), tuned));
+        if (isOnNonBlockingThread()) {
+            // The window keeps calling as the calls complete, while the handler gets the future of each of them.
+            List<CompletableFuture<T>> elements = window.elements();
+            window.start(parallelism);
+            List<T> results = new ArrayList<>(inputs.size());
+            for (CompletableFuture<T> element : elements) {
+                results.add(handleNonBlockingThread(element));
+            }
+            return results;
+        }
+        
+        // The whole batch is one invocation -- the function is not even called when rejected.
+        return admit(tuned, ()->defaultValues(inputs.size()), ()->{
+            CountDownLatch latch = window.start(parallelism);
+            try {
+                awaitInvocation(latch, tuned);
+            } finally {
+                window.stop();
+            }
+            
+            List<T> results = new ArrayList<>(inputs.size());
+            for (int i = 0; i < inputs.size(); i++) {
+                T result = handleOutcome(window.outcome(i));
+                results.add(result);
+            }
+            return results;
+        });
+    }
+    
+    List<T> defaultValues(
+            int size) {
+        List<T> values = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            values.add(prepareDefaultValue());
+        }
+        return values;
+    }
+    
+    /**
+     * Returns a blocking iterator of the results of the futures in the order they complete.
+     * 
+     * The handlers of this AsyncToSync are applied to each element and {@code onTimeout} (counted from now) is the
+     *   budget of the whole iteration -- the elements not completed by then get the timeout value.
+     * As {@link Iterator#next()} cannot throw {@link InterruptedException}, the interruption of the waiting thread
+     *   is thrown as {@link AsyncToSyncException} (with the interrupted status restored).
+     * 
+     * @param futures
+     *            the futures.
+     * @return the iterator of the results.
+     */
+    public Iterator<T> inCompletionOrder(
+            Collection<? extends Future<T>> futures) {
+        // The futures are all there already, so all of them are waited for to get the true completion order.
+        return new CompletionIterator(futures, Integer.MAX_VALUE, this.tunedSettings);
+    }
+    
+    /**
+     * Returns a stream of the results of the futures in the order they complete.
+     * See {@link AsyncToSync#inCompletionOrder(Collection)}.
+     * 
+     * @param futures
+     *            the futures.
+     * @return the stream of the results.
+     */
+    public Stream<T> streamInCompletionOrder(
+            Collection<? extends Future<T>> futures) {
+        Iterator<T> iterator = this.inCompletionOrder(futures);
+        int size = (futures != null) ? futures.size() : 0;
+        Spliterator<T> spliterator = Spliterators.spliterator(iterator, size, Spliterator.ORDERED);
+        return StreamSupport.stream(spliterator, false);
+    }
+    
+    /**
+     * Fold the results of the futures as soon as each of them completes (in completion order).
+     * 
+     * The futures are taken from the iterable as the results are folded, so that at most
+     *   {@value AsyncToSync#REDUCE_WINDOW} of them are waited for at a time and the order is the completion order within
+     *   that window. Only the outcome of each future is kept (and only until it is folded) so the memory stays flat
+     *   regardless of the number of futures. The handlers of this AsyncToSync are applied to each element and {@code onTimeout} is
+     *   the budget of the whole fold -- the elements not completed by then are folded with the timeout value.
+     * 
+     * @param futures
+     *            the futures.
+     * @param identity
+     *            the initial value of the accumulation.
+     * @param accumulator
+     *            the function to fold each result into the accumulation.
+     * @return the accumulation.
+     * @throws InterruptedException
+     *            when the current thread is interrupted.
+     */
+    public <R> R invokeReduce(
+            Iterable<? extends Future<T>> futures,
+            R                             identity,
+            BiFunction<R, ? super T, R>   accumulator)
+                    throws InterruptedException {
+        if (isOnNonBlockingThread()) {
+            // The handler gets each future as is instead of the wait for it.
+            R accumulation = identity;
+            if (futures != null) {
+                for (Future<T> future : futures) {
+                    accumulation = accumulator.apply(accumulation, handleNonBlockingThread(future));
+                }
+            }
+            return accumulation;
+        }
+        
+        // The whole fold is one invocation -- the futures are not waited for when rejected.
+        PolicySettings tuned = this.tunedSettings;
+        return admit(tuned, ()->reduceDefaults(futures, identity, accumulator), ()->{
+            CompletionIterator iterator = new CompletionIterator(futures, REDUCE_WINDOW, tuned);
+            
+            R accumulation = identity;
+            while (iterator.hasNext()) {
+                T result = iterator.awaitNext();
+                accumulation = accumulator.apply(accumulation, result);
+            }
+            return accumulation;
+        });
+    }
+    
+    /**
+     * Returns the fold of a rejected reduce -- the default value for each of the futures (none of them waited for).
+     */
+    private <R> R reduceDefaults(
+            Iterable<? extends Future<T>> futures,
+            R                             identity,
+            BiFunction<R, ? super T, R>   accumulator) {
+        R accumulation = identity;
+        if (futures != null) {
+            for (Future<T> future : futures) {
+                accumulation = accumulator.apply(accumulation, prepareDefaultValue());
+            }
+        }
+        return accumulation;
+    }
+    
+    /**
+     * Start the invocation to a callback-style asynchronous API.
+     * The given call is given a completion callback (value and exception) that wakes up the waiting thread directly
+     *   without an intermediate CompletableFuture. The timeout and the handlers are the same as other invocations, and
+     *   so are the concurrency limit (the call is not made when rejected), the fault injection and the sizing.
+     * 
+     * For example: {@code invokeCallback(callback -> client.call(request, callback::accept))}.
+     * 
+     * @param call
+     *            the call to the asynchronous API.
+     * @return the result value.
+     * @throws InterruptedException
+     *            when the current thread is interrupted.
+     */
+    public T invokeCallback(
+            Consumer<BiConsumer<T, Throwable>> call)
+                    throws InterruptedException {
+        if (call == null) {
+            return this.invoke((Future<T>)null);
+        }
+        
+        // The call is not even made when rejected.
+        PolicySettings tuned = this.tunedSettings;
+        return admit(tuned, this::prepareDefaultValue, ()->awaitCallback(call, tuned));
+    }
+    
+    private T awaitCallback(
+            Consumer<BiConsumer<T, Throwable>> call,
+            PolicySettings                     tuned)
+                    throws InterruptedException {
+        SizingAdvisor     advisor  = this.sizingAdvisor;
+        long              calledAt = (advisor != null) ? System.nanoTime() : 0;
+        CallbackFuture<T> future   = new CallbackFuture<>(onCallback(advisor, calledAt, tuned), this.stackless);
+        
+        FaultInjection faults = ((tuned == null) || tuned.isFaultInjectionEnabled()) ? this.faultInjection : null;
+        BiConsumer<T, Throwable> callback = (faults != null) ? faults.inject(future) : future;
+        try {
+            call.accept(callback);
+        } catch (RuntimeException exception) {
+            future.accept(null, exception);
+        }
+        if (isOnNonBlockingThread()) {
+            return handleNonBlockingThread(future);
+        }
+        
+        WaitRegistry.Wait wait = registerWait(future);
+        Runnable sideTasks = NO_SIDE_TASKS;
+        long waitStart = (advisor != null) ? System.nanoTime() : 0;
+        try {
+            sideTasks = startSideTasks(future, waitTime(tuned));
+            
+            if (!future.await(waitTime(tuned))) {
+                T lastKnownGood = lastKnownGood(tuned, DEFAULT_KEY);
+                if (lastKnownGood != null) {
+                    return lastKnownGood;
+                }
                 return prepareTimeout();
             }
         } finally {
-            atSameTime.ifPresent(cf->{
-                cf.cancel(true);
-            });
+            sideTasks.run();
+            unregisterWait(wait);
+            if (advisor != null) {
+                advisor.recordWait(System.nanoTime() - waitStart);
+            }
+        }
+        
+        RuntimeException rte = prepareRuntimeException(future.exception());
+        if (rte != null) {
+            if (!(rte instanceof CancellationException)) {
+                T lastKnownGood = lastKnownGood(tuned, DEFAULT_KEY);
+                if (lastKnownGood != null) {
+                    return lastKnownGood;
+                }
+            }
+            return handleRuntimeException(rte);
+        }
+        
+        return future.value();
+    }
+    
+    /**
+     * Returns the completion hook of the callback keeping the last known good value and measuring the service time
+     *   (or {@code null} if neither is needed).
+     */
+    private BiConsumer<T, Throwable> onCallback(
+            SizingAdvisor  advisor,
+            long           calledAt,
+            PolicySettings tuned) {
+        LastKnownGoods<T> values = isKeepingLastKnownGood(tuned) ? this.lastKnownGoods.get() : null;
+        if ((values == null) && (advisor == null)) {
+            return null;
+        }
+        return (value, exception)->{
+            if (advisor != null) {
+                advisor.recordService(System.nanoTime() - calledAt);
+            }
+            if ((values != null) && (exception == null) && (value != null)) {
+                values.put(DEFAULT_KEY, value);
+            }
+        };
+    }
+    
+    /**
+     * Open a structured scope which is shut down (all unfinished subtasks cancelled) as soon as one subtask fails.
+     * The subtasks forked with {@link StructuredScope#fork(Supplier)} run on the parallely executor.
+     * 
+     * @return the scope.
+     */
+    public StructuredScope.ShutdownOnFailure<T> scopeOnFailure() {
+        return new StructuredScope.ShutdownOnFailure<>(this, parallelyExecutor());
+    }
+    
+    /**
+     * Open a structured scope which is shut down (all unfinished subtasks cancelled) as soon as one subtask succeeds.
+     * The subtasks forked with {@link StructuredScope#fork(Supplier)} run on the parallely executor.
+     * 
+     * @return the scope.
+     */
+    public StructuredScope.ShutdownOnSuccess<T> scopeOnSuccess() {
+        return new StructuredScope.ShutdownOnSuccess<>(this, parallelyExecutor());
+    }
+    
+    /**
+     * Start the invocation to the future object for the given key.
+     * The key is used to keep the last known good value (see {@link AsyncToSync#orLastKnownGood()}).
+     * 
+     * @param key
+     *            the key of the last known good value.
+     * @param aync
+     *            the asynchronous future.
+     * @return the result value.
+     * @throws InterruptedException
+     *            when the current thread is interrupted.
+     */
+    public T invokeFor(
+            Object    key,
+            Future<T> aync)
+                    throws InterruptedException {
+        // Read the settings once so the whole invocation sees the same snapshot.
+        return invokeWithin(key, aync, this.tunedSettings, submittedAt(aync));
+    }
+    
+    /**
+     * Returns when the work of the future is submitted if known -- or now.
+     */
+    private long submittedAt(
+            Future<?> aync) {
+        if (this.sizingAdvisor == null) {
+            return 0;
+        }
+        if (aync instanceof CompletableFutureTask) {
+            return ((CompletableFutureTask<?>)aync).createdNanos();
+        }
+        return System.nanoTime();
+    }
+    
+    private T invokeWithin(
+            Object         key,
+            Future<T>      aync,
+            PolicySettings tuned,
+            long           submittedAt)
+                    throws InterruptedException {
+        if (isOnNonBlockingThread()) {
+            return handleNonBlockingThread(aync);
+        }
+        
+        return admit(tuned, this::prepareDefaultValue, ()->awaitFor(key, aync, tuned, submittedAt, false, null));
+    }
+    
+    /**
+     * Run the blocking invocation within the concurrency limit of the settings -- counted in flight while it runs --
+     *   or returns the rejected value right away if the limit is reached. Without a limit, nothing is counted.
+     */
+    <R> R admit(
+            PolicySettings        tuned,
+            BlockingInvocation<R> onRejected,
+            BlockingInvocation<R> invocation)
+                    throws InterruptedException {
+        int maxConcurrent = maxConcurrent(tuned);
+        if (maxConcurrent == 0) {
+            return invocation.invoke();
+        }
+        if (!enter(maxConcurrent)) {
+            return onRejected.invoke();
+        }
+        try {
+            return invocation.invoke();
+        } finally {
+            this.inFlight.decrementAndGet();
+        }
+    }
+    
+    private int maxConcurrent(
+            PolicySettings tuned) {
+        return (tuned != null) ? tuned.getMaxConcurrent() : this.maxConcurrent;
+    }
+    
+    /**
+     * Count the invocation in flight unless that is over the given maximum -- in which case the invocation is
+     *   rejected. An entered invocation must decrement {@link #inFlight} once done.
+     */
+    private boolean enter(
+            int maxConcurrent) {
+        int concurrent = this.inFlight.incrementAndGet();
+        if (concurrent > maxConcurrent) {
+            this.inFlight.decrementAndGet();
+            this.rejected.increment();
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Wait for the future. The future made by this invocation (the adapter of a plain future or the given future if
+     *   {@code isOurs}) is completed with the timeout signal once this thread gives up waiting for it -- so whatever
+     *   depends on it knows that no one is waiting. The cancellation token (if any) is tripped when the wait times out.
+     */
+    private T awaitFor(
+            Object            key,
+            Future<T>         aync,
+            PolicySettings    tuned,
+            long              submittedAt,
+            boolean           isOurs,
+            CancellationToken token)
+                    throws InterruptedException {
+        SizingAdvisor advisor    = this.sizingAdvisor;
+        boolean       isAdapter  = !(aync instanceof CompletableFuture) && !(aync instanceof CompletableFutureTask);
+        boolean       isToGiveUp = (isOurs || isAdapter) && !isKeepingLastKnownGood(tuned);
+        
+        CompletableFuture<T> preparedFuture = prepareFuture(aync, waitTime(tuned), tuned);
+        if (preparedFuture == null) {
+            T defaultValue = prepareDefaultValue();
+            return defaultValue;
         }
         
-        RuntimeException rte = exceptionRef.get();
+        Object               theKey = (key != null) ? key : DEFAULT_KEY;
+        CompletableFuture<T> future = observe(preparedFuture, theKey, tuned, advisor, submittedAt);
+        
+        CallbackFuture<T> completed = null;
+        WaitRegistry.Wait wait = registerWait(future);
+        Runnable sideTasks = NO_SIDE_TASKS;
+        long waitStart = (advisor != null) ? System.nanoTime() : 0;
+        try {
+            sideTasks = startSideTasks(future, waitTime(tuned));
+            
+            completed = awaitCompletion(future, waitTime(tuned));
+            if (completed == null) {
+                T lastKnownGood = lastKnownGood(tuned, theKey);
+                if (lastKnownGood != null) {
+                    return lastKnownGood;
+                }
+                if (isToGiveUp) {
+                    preparedFuture.completeExceptionally(timeoutSignal());
+                }
+                if ((token != null) && !isKeepingLastKnownGood(tuned)) {
+                    // The future still running is not expected to refresh the value, so let the work stop.
+                    token.trip(CancellationToken.Reason.TIMEOUT);
+                }
+                return prepareTimeout();
+            }
+        } catch (InterruptedException interruptedException) {
+            if (isToGiveUp) {
+                preparedFuture.completeExceptionally(timeoutSignal());
+            }
+            throw interruptedException;
+        } finally {
+            sideTasks.run();
+            unregisterWait(wait);
+            if (advisor != null) {
+                advisor.recordWait(System.nanoTime() - waitStart);
+            }
+        }
+        
+        // No ExecutionException nor TimeoutException (each with a stack trace) is created by the wait.
+        RuntimeException rte = prepareRuntimeException(completed.exception());
         if (rte != null) {
+            if (!(rte instanceof CancellationException)) {
+                T lastKnownGood = lastKnownGood(tuned, theKey);
+                if (lastKnownGood != null) {
+                    return lastKnownGood;
+                }
+            }
             return handleRuntimeException(rte);
         }
         
-        return resultRef.get();
+        return completed.value();
+    }
+    
+    /**
+     * Returns the future to be waited for -- with the fault (if any) injected, the service time measured and the last
+     *   known good value kept.
+     */
+    private CompletableFuture<T> observe(
+            CompletableFuture<T> preparedFuture,
+            Object               key,
+            PolicySettings       tuned,
+            SizingAdvisor        advisor,
+            long                 submittedAt) {
+        CompletableFuture<T> future = withFaults(preparedFuture, tuned);
+        
+        if (advisor != null) {
+            future.whenComplete((result, exception)->{
+                // The adapter of a plain future is completed with the timeout signal when abandoned -- not a service.
+                if (exception != timeoutSignal()) {
+                    advisor.recordService(System.nanoTime() - submittedAt);
+                }
+            });
+        }
+        
+        if (isKeepingLastKnownGood(tuned)) {
+            LastKnownGoods<T> values = this.lastKnownGoods.get();
+            future.thenAccept(value->{
+                if (value != null) {
+                    values.put(key, value);
+                }
+            });
+        }
+        return future;
+    }
+    
+    CompletableFuture<T> withFaults(
+            CompletableFuture<T> future) {
+        return withFaults(future, this.tunedSettings);
+    }
+    
+    /**
+     * Returns the future with the fault (if any) injected (see {@link AsyncToSync#injectFaults(FaultInjection)}).
+     */
+    CompletableFuture<T> withFaults(
+            CompletableFuture<T> future,
+            PolicySettings       tuned) {
+        FaultInjection faults = ((tuned == null) || tuned.isFaultInjectionEnabled()) ? this.faultInjection : null;
+        return ((faults != null) && (future != null)) ? faults.inject(future) : future;
+    }
+    
+    Long getWaitTime() {
+        return waitTime(this.tunedSettings);
+    }
+    
+    private Long waitTime(
+            PolicySettings tuned) {
+        return (tuned != null) ? tuned.getWaitTime() : this.waitTime;
+    }
+    
+    private T lastKnownGood(
+            PolicySettings tuned,
+            Object         key) {
+        if ((tuned != null) && !tuned.isLastKnownGoodEnabled()) {
+            return null;
+        }
+        return getLastKnownGood(key);
+    }
+    
+    private boolean isKeepingLastKnownGood(
+            PolicySettings tuned) {
+        return this.lastKnownGoods.isPresent() && ((tuned == null) || tuned.isLastKnownGoodEnabled());
+    }
+    
+    Executor parallelyExecutor() {
+        return this.parallelyExecutor.orElseGet(DeadlineExecutor::shared);
+    }
+    
+    /**
+     * Returns the executor of the parallely tasks -- by default the threads of the adapters as the tasks run for as
+     *   long as the wait, which would hold the threads of the deadline executor from the hedges and the subtasks.
+     */
+    private Executor sideTaskExecutor() {
+        return this.parallelyExecutor.orElseGet(AdapterThreads::instance);
+    }
+    
+    private Executor internalExecutor() {
+        return this.internalExecutor.orElseGet(AdapterThreads::instance);
+    }
+    
+    /**
+     * Check if the current thread is a non-blocking one that must be handled by the handler (see
+     *   {@link AsyncToSync#onNonBlockingThread(Function)}).
+     */
+    boolean isOnNonBlockingThread() {
+        return this.onNonBlockingThread.isPresent() && NonBlockingThreads.isCurrentThreadNonBlocking();
+    }
+    
+    T handleNonBlockingThread(
+            Future<T> aync) {
+        NonBlockingThreads.reportBlockingCall();
+        return this.onNonBlockingThread.get().apply(aync);
+    }
+    
+    private WaitRegistry.Wait registerWait(
+            Future<T> future) {
+        if (this.waitRegistry == null) {
+            return null;
+        }
+        return this.waitRegistry.register(this.name, future);
+    }
+    
+    private void unregisterWait(
+            WaitRegistry.Wait wait) {
+        if (wait != null) {
+            wait.unregister();
+        }
+    }
+    
+    /**
+     * Start the parallely and periodically tasks.
+     * 
+     * @return the runnable to stop them.
+     */
+    private Runnable startSideTasks(
+            Future<T> future,
+            Long      waitTime) {
+        if (!this.parallely.isPresent() && !this.periodically.isPresent()) {
+            return NO_SIDE_TASKS;
+        }
+        
+        Executor executor = sideTaskExecutor();
+        FutureTask<Void> atSameTime = this.parallely
+                .map(consumer-> startParallely(consumer, future, executor, waitTime))
+                .orElse(null);
+        Ticks<T> ticks = this.periodically
+                .map(consumer-> startPeriodically(consumer, future))
+                .orElse(null);
+        return ()->{
+            if (ticks != null) {
+                ticks.stop();
+            }
+            if (atSameTime != null) {
+                stopParallely(atSameTime, executor);
+            }
+        };
+    }
+    
+    private FutureTask<Void> startParallely(
+            Consumer<Future<T>> consumer,
+            Future<T>           future,
+            Executor            executor,
+            Long                waitTime) {
+        FutureTask<Void> task = new FutureTask<>(()->{
+            consumer.accept(future);
+        }, null);
+        // No need to start once the caller is no longer waiting.
+        execute(executor, waitTime, task, null);
+        return task;
+    }
+    
+    /**
+     * Execute the task with the deadline of the caller (if any) so a {@link DeadlineExecutor} serves it in deadline
+     *   order and drops it (running the drop action instead) if it can no longer be useful.
+     */
+    private static void execute(
+            Executor executor,
+            Long     waitTime,
+            Runnable task,
+            Runnable onDropped) {
+        if ((waitTime != null) && (executor instanceof DeadlineExecutor)) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitTime);
+            ((DeadlineExecutor)executor).execute(task, deadline, onDropped);
+        } else {
+            executor.execute(task);
+        }
+    }
+    
+    private void stopParallely(
+            FutureTask<Void> task,
+            Executor         executor) {
+        // Unlike CompletableFuture, cancelling the FutureTask interrupts the thread running it.
+        task.cancel(true);
+        if (executor instanceof ThreadPoolExecutor) {
+            // Withdraw the task if it is still waiting in the queue.
+            ((ThreadPoolExecutor)executor).remove(task);
+        }
+    }
+    
+    private Ticks<T> startPeriodically(
+            Consumer<Future<T>> consumer,
+            Future<T>           future) {
+        Ticks<T> ticks = new Ticks<>(consumer, future);
+        ticks.schedule = SharedScheduler.instance().scheduleAtFixedRate(
+                ticks,
+                this.periodicallyInitialDelay,
+                this.periodicallyPeriod,
+                TimeUnit.MILLISECONDS);
+        return ticks;
+    }
+    
+    /**
+     * Wait for the completion of the future without creating any exception for the timeout or the failure.
+     * The waiting thread is woken up directly by the completion hook; once the wait is abandoned (timeout or
+     *   interruption), the hook is detached so the future still pending keeps only that small hook -- not the waiter
+     *   nor the slots of the result.
+     * 
+     * @return the completed waiter or {@code null} if timeout.
+     */
+    private CallbackFuture<T> awaitCompletion(
+            CompletableFuture<T> future,
+            Long                 waitTime)
+                    throws InterruptedException {
+        CallbackFuture<T> waiter = new CallbackFuture<>(null, false);
+        WaitHook<T>       hook   = new WaitHook<>(waiter);
+        future.whenComplete(hook);
+        boolean isCompleted = false;
+        try {
+            isCompleted = waiter.await(waitTime);
+            return isCompleted ? waiter : null;
+        } finally {
+            if (!isCompleted) {
+                hook.detach();
+            }
+        }
     }
     
     private boolean awaitInvocation(
-            CountDownLatch latch)
+            CountDownLatch latch,
+            PolicySettings tuned)
             throws InterruptedException {
         boolean isTimeout;
-        if (this.waitTime != null) {
-            isTimeout = !latch.await(this.waitTime, TimeUnit.MILLISECONDS);
+        Long    waitTime = waitTime(tuned);
+        if (waitTime != null) {
+            isTimeout = !latch.await(waitTime, TimeUnit.MILLISECONDS);
         } else {
             latch.await();
             isTimeout = false;
@@ -480,29 +1970,54 @@ public class AsyncToSync<T> {
         return isTimeout;
     }
     
-    private CompletableFuture<T> prepareFuture(Future<T> future) {
+    /**
+     * Returns the completable future of the future -- an adapter waiting (in the internal executor) for a plain
+     *   future. The adapter waits only until the deadline of the caller (unless the last known good values are kept)
+     *   and, with a {@link DeadlineExecutor}, is dropped if its turn comes after the deadline; in both cases the
+     *   adapter is left for the caller to complete with the timeout signal.
+     */
+    private <V> CompletableFuture<V> prepareFuture(
+            Future<V>      future,
+            Long           waitTime,
+            PolicySettings tuned) {
         if (future == null) {
             return null;
         }
         
         if (future instanceof CompletableFuture) {
-            return (CompletableFuture<T>) future;
+            return (CompletableFuture<V>) future;
+        }
+        
+        if (future instanceof CompletableFutureTask) {
+            // The task signals its completion, so there is no need for an adapter thread.
+            return ((CompletableFutureTask<V>) future).toCompletableFuture();
         }
         
-        return CompletableFuture.supplyAsync(() -> {
+        Long                 adapterWaitTime = isKeepingLastKnownGood(tuned) ? null : waitTime;
+        long                 deadline        = (adapterWaitTime != null)
+                                             ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(adapterWaitTime)
+                                             : 0;
+        CompletableFuture<V> adapter         = new CompletableFuture<>();
+        execute(internalExecutor(), adapterWaitTime, () -> {
             try {
-                return future.get();
+                V value = (adapterWaitTime != null)
+                        ? future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)
+                        : future.get();
+                adapter.complete(value);
+            } catch (TimeoutException e) {
+                // The caller times out too and completes the adapter.
             } catch (Exception e) {
                 if (e instanceof RuntimeException) {
-                    throw (RuntimeException)e;
+                    adapter.completeExceptionally(e);
                 } else {
-                    throw new RuntimeException(e);
+                    adapter.completeExceptionally(wrapException(e));
                 }
             }
-        });
+        }, null);
+        return adapter;
     }
     
-    private static RuntimeException prepareRuntimeException(
+    private RuntimeException prepareRuntimeException(
             Throwable exception) {
         if (exception == null) {
             return null;
@@ -517,11 +2032,40 @@ public class AsyncToSync<T> {
             
         } else {
             assert false : "Don't expect this to happen.";
-            runtimeException = new RuntimeException(exception);
+            runtimeException = wrapException(exception);
         }
         return runtimeException;
     }
     
+    private RuntimeException wrapException(
+            Throwable exception) {
+        return new AsyncToSyncException(exception, !this.stackless);
+    }
+    
+    /**
+     * Returns the signal completing the internal futures no one is waiting for anymore. The signal is not thrown to
+     *   the caller, so one shared instance (allocated once) is used whether or not this AsyncToSync is stackless.
+     */
+    private TimeoutException timeoutSignal() {
+        return StacklessSignals.TIMEOUT;
+    }
+    
+    T handleOutcome(
+            Outcome<T> outcome)
+                    throws InterruptedException {
+        if (outcome == null) {
+            return prepareTimeout();
+        }
+        if (outcome.isNoFuture()) {
+            return prepareDefaultValue();
+        }
+        RuntimeException rte = prepareRuntimeException(outcome.exception());
+        if (rte != null) {
+            return handleRuntimeException(rte);
+        }
+        return outcome.value();
+    }
+    
     private T prepareTimeout() {
         T result;
         if (this.onTimeout.isPresent()) {
@@ -562,7 +2106,7 @@ public class AsyncToSync<T> {
         return result;
     }
     
-    private T prepareDefaultValue() {
+    T prepareDefaultValue() {
         T result = this.orElse
                 .map(orElse -> orElse.get())
                 .orElse(null);
@@ -572,6 +2116,15 @@ public class AsyncToSync<T> {
     protected T handleRuntimeException(
             RuntimeException rte)
                     throws InterruptedException {
+        if (this.exceptionRoutes != null) {
+            Object result = this.exceptionRoutes.handle(rte);
+            if (result != ExceptionRoutes.NO_ROUTE) {
+                @SuppressWarnings("unchecked")
+                T value = (T)result;
+                return value;
+            }
+        }
+        
         if (this.onException.isPresent()) {
             T result = onException.get().apply(rte);
             return result;
@@ -597,6 +2150,257 @@ public class AsyncToSync<T> {
     
     // == AUX class ====================================================================================================
     
+    /**
+     * The blocking part of an invocation (see
+     *   {@link AsyncToSync#admit(PolicySettings, BlockingInvocation, BlockingInvocation)}).
+     */
+    @FunctionalInterface
+    static interface BlockingInvocation<R> {
+        
+        R invoke()
+                throws InterruptedException;
+        
+    }
+    
+    /**
+     * The completion hook of one wait -- detachable from the waiter once the wait is abandoned.
+     */
+    private static final class WaitHook<T> implements BiConsumer<T, Throwable> {
+        
+        private volatile CallbackFuture<T> waiter;
+        
+        WaitHook(
+                CallbackFuture<T> waiter) {
+            this.waiter = waiter;
+        }
+        
+        @Override
+        public void accept(
+                T         value,
+                Throwable exception) {
+            CallbackFuture<T> waiter = this.waiter;
+            if (waiter != null) {
+                waiter.accept(value, exception);
+            }
+        }
+        
+        void detach() {
+            this.waiter = null;
+        }
+        
+    }
+    
+    /**
+     * The periodic ticks of one invocation. Stopping waits for the tick in progress (ticks are short) so no tick runs
+     *   after the invocation returns.
+     */
+    private static final class Ticks<T> implements Runnable {
+        
+        private final Consumer<Future<T>> consumer;
+        
+        private final Future<T> future;
+        
+        private volatile ScheduledFuture<?> schedule;
+        
+        private volatile boolean stopped = false;
+        
+        Ticks(
+                Consumer<Future<T>> consumer,
+                Future<T>           future) {
+            this.consumer = consumer;
+            this.future   = future;
+        }
+        
+        @Override
+        public void run() {
+            if (!stopped) {
+                consumer.accept(future);
+            }
+        }
+        
+        /**
+         * Stop the ticks without waiting for the one in progress (if any) -- the invoker returns right away.
+         */
+        void stop() {
+            stopped = true;
+            schedule.cancel(false);
+        }
+        
+    }
+    
+    /**
+     * The invocation waiting for the future without blocking a thread (see {@link AsyncToSync#invokeAsync(Future)}).
+     */
+    private class AsyncInvocation {
+        
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        
+        private final AtomicBoolean resolved = new AtomicBoolean(false);
+        
+        private final PolicySettings tuned;
+        
+        private final boolean counted;
+        
+        private CompletableFuture<T> adapter = null;
+        
+        private Runnable sideTasks = NO_SIDE_TASKS;
+        
+        private volatile ScheduledFuture<?> timeout = null;
+        
+        AsyncInvocation(
+                PolicySettings tuned,
+                boolean        counted) {
+            this.tuned   = tuned;
+            this.counted = counted;
+        }
+        
+        CompletableFuture<T> await(
+                CompletableFuture<T> future,
+                CompletableFuture<T> adapter,
+                Long                 waitTime) {
+            // Set up everything before the first chance of being resolved.
+            this.adapter   = adapter;
+            this.sideTasks = startSideTasks(future, waitTime);
+            if (waitTime != null) {
+                this.timeout = SharedScheduler.instance().schedule(()->{
+                    resolve(null);
+                }, waitTime, TimeUnit.MILLISECONDS);
+            }
+            future.whenComplete((value, exception)->{
+                resolve(Outcome.of(value, exception));
+            });
+            return result;
+        }
+        
+        /**
+         * Resolve the result with the outcome ({@code null} for timeout) -- only the first outcome counts.
+         */
+        CompletableFuture<T> resolve(
+                Outcome<T> outcome) {
+            if (!resolved.compareAndSet(false, true)) {
+                return result;
+            }
+            ScheduledFuture<?> timeout = this.timeout;
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            sideTasks.run();
+            if (counted) {
+                inFlight.decrementAndGet();
+            }
+            if ((outcome == null) && (adapter != null) && !isKeepingLastKnownGood(tuned)) {
+                // The adapter is ours, so let whatever depends on it know that no one is waiting.
+                adapter.completeExceptionally(timeoutSignal());
+            }
+            try {
+                result.complete(valueOf(outcome));
+            } catch (InterruptedException | RuntimeException | Error exception) {
+                result.completeExceptionally(exception);
+            }
+            return result;
+        }
+        
+        private T valueOf(
+                Outcome<T> outcome)
+                        throws InterruptedException {
+            boolean isFailed = (outcome != null)
+                            && !outcome.isNoFuture()
+                            && (outcome.exception() != null)
+                            && !(prepareRuntimeException(outcome.exception()) instanceof CancellationException);
+            if ((outcome == null) || isFailed) {
+                T lastKnownGood = lastKnownGood(tuned, DEFAULT_KEY);
+                if (lastKnownGood != null) {
+                    return lastKnownGood;
+                }
+            }
+            return handleOutcome(outcome);
+        }
+        
+    }
+    
+    /**
+     * The iterator of the results in the order the futures complete.
+     */
+    private class CompletionIterator implements Iterator<T> {
+        
+        private final CompletionQueue<T> queue;
+        
+        private final PolicySettings tuned;
+        
+        CompletionIterator(
+                Iterable<? extends Future<T>> futures,
+                int                           window,
+                PolicySettings                tuned) {
+            this.tuned = tuned;
+            this.queue = new CompletionQueue<>(
+                    futures,
+                    (future, waitTime)->withFaults(prepareFuture(future, waitTime, tuned), tuned),
+                    window,
+                    waitTime(tuned));
+        }
+        
+        @Override
+        public boolean hasNext() {
+            return queue.hasNext();
+        }
+        
+        @Override
+        public T next() {
+            try {
+                if (isOnNonBlockingThread()) {
+                    return nextWithoutBlocking();
+                }
+                // Each wait for the next element is one invocation -- only the completed element is taken when
+                //   rejected.
+                T result = admit(tuned, this::skipNext, this::awaitNext);
+                return result;
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                throw wrapException(exception);
+            }
+        }
+        
+        private T nextWithoutBlocking()
+                throws InterruptedException {
+            if (!queue.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            CompletableFuture<Outcome<T>> next = queue.nextAsync();
+            if (next.isDone()) {
+                // Already there -- no need to block.
+                return handleOutcome(next.join());
+            }
+            CompletableFuture<T> element = new CompletableFuture<>();
+            next.thenAccept(outcome->{
+                // The element not completed by the deadline is left pending.
+                if (outcome != null) {
+                    outcome.completeTo(element);
+                }
+            });
+            return handleNonBlockingThread(element);
+        }
+        
+        T awaitNext()
+                throws InterruptedException {
+            if (!queue.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            T result = handleOutcome(queue.next());
+            return result;
+        }
+        
+        private T skipNext()
+                throws InterruptedException {
+            if (!queue.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            // No wait is needed for the outcome already there -- otherwise the turn is given up for the default.
+            Outcome<T> outcome = queue.poll();
+            return (outcome != null) ? handleOutcome(outcome) : prepareDefaultValue();
+        }
+        
+    }
+    
     /**
      * This helper class make it possible to run without having to worry about the interrupt exception of the sync
      *   thread.
@@ -0,0 +1,40 @@
+package nawaman.papercuts.concurrent.asynctosync;
+
+/**
+ * This exception is used by {@link AsyncToSync} to wrap the checked exception thrown from the asynchronous call.
+ * 
+ * The original exception is always kept as the cause.
+ * When the AsyncToSync is {@link AsyncToSync#stackless() stackless}, the wrapper is created without stack trace.
+ * 
+ * @author NawaMan
+ */
+public class AsyncToSyncException extends RuntimeException {
+    
+    private static final long serialVersionUID = 7829460138207215847L;
+    
+    /**
+     * Constructs the exception wrapping the given cause.
+     * 
+     * @param cause
+     *            the original exception.
+     */
+    public AsyncToSyncException(
+            Throwable cause) {
+        super(cause);
+    }
+    
+    /**
+     * Constructs the exception wrapping the given cause and with or without stack trace.
+     * 
+     * @param cause
+     *            the original exception.
+     * @param writableStackTrace
+     *            whether or not the stack trace should be captured.
+     */
+    public AsyncToSyncException(
+            Throwable cause,
+            boolean writableStackTrace) {
+        super((cause == null) ? null : cause.toString(), cause, true, writableStackTrace);
+    }
+    
+}
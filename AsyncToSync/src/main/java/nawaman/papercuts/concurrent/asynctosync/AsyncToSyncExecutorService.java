@@ -0,0 +1,82 @@
+package nawaman.papercuts.concurrent.asynctosync;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An executor service wrapper which submits work as {@link CompletableFutureTask}.
+ * 
+ * The futures returned from {@code submit(...)} can then be waited by {@link AsyncToSync} with no adapter thread.
+ * 
+ * @author NawaMan
+ */
+public class AsyncToSyncExecutorService extends AbstractExecutorService {
+    
+    private final ExecutorService executorService;
+    
+    /**
+     * Constructs the wrapper of the given executor service.
+     * 
+     * @param executorService
+     *            the executor service running the tasks.
+     */
+    public AsyncToSyncExecutorService(
+            ExecutorService executorService) {
+        if (executorService == null) {
+            throw new NullPointerException("executorService");
+        }
+        this.executorService = executorService;
+    }
+    
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(
+            Runnable runnable,
+            T        value) {
+        return new CompletableFutureTask<>(runnable, value);
+    }
+    
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(
+            Callable<T> callable) {
+        return new CompletableFutureTask<>(callable);
+    }
+    
+    @Override
+    public void execute(
+            Runnable command) {
+        executorService.execute(command);
+    }
+    
+    @Override
+    public void shutdown() {
+        executorService.shutdown();
+    }
+    
+    @Override
+    public List<Runnable> shutdownNow() {
+        return executorService.shutdownNow();
+    }
+    
+    @Override
+    public boolean isShutdown() {
+        return executorService.isShutdown();
+    }
+    
+    @Override
+    public boolean isTerminated() {
+        return executorService.isTerminated();
+    }
+    
+    @Override
+    public boolean awaitTermination(
+            long     timeout,
+            TimeUnit unit)
+                    throws InterruptedException {
+        return executorService.awaitTermination(timeout, unit);
+    }
+    
+}
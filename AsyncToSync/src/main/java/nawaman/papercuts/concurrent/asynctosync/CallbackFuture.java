@@ -0,0 +1,205 @@
+package nawaman.papercuts.concurrent.asynctosync;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+
+/**
+ * The completion callback given to a callback-style asynchronous API which wakes up the waiting thread directly.
+ * 
+ * This is a single object replacing the CompletableFuture, its completion stage, the latch and the references that
+ *   would otherwise be needed to wait for the callback. The thread waiting with {@link #await(Long)} is parked and
+ *   unparked directly; any other thread calling {@link #get()} waits on the monitor.
+ * 
+ * @author NawaMan
+ */
+final class CallbackFuture<T> implements Future<T>, BiConsumer<T, Throwable> {
+    
+    private static final int PENDING    = 0;
+    private static final int COMPLETING = 1;
+    private static final int DONE       = 2;
+    
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<CallbackFuture> STATE
+            = AtomicIntegerFieldUpdater.newUpdater(CallbackFuture.class, "state");
+    
+    private volatile int state = PENDING;
+    
+    private volatile Thread waiter;
+    
+    private volatile boolean hasMonitorWaiters = false;
+    
+    private final BiConsumer<? super T, ? super Throwable> onComplete;
+    
+    private final boolean stackless;
+    
+    private T value;
+    
+    private Throwable exception;
+    
+    /**
+     * Constructs a callback future.
+     * 
+     * @param onComplete
+     *            the consumer to be called with the value and the exception once completed (may be {@code null}).
+     * @param stackless
+     *            true if cancelled with a stackless exception (see {@link AsyncToSync#stackless()}).
+     */
+    CallbackFuture(
+            BiConsumer<? super T, ? super Throwable> onComplete,
+            boolean                                  stackless) {
+        this.onComplete = onComplete;
+        this.stackless  = stackless;
+    }
+    
+    @Override
+    public void accept(
+            T         value,
+            Throwable exception) {
+        if (!STATE.compareAndSet(this, PENDING, COMPLETING)) {
+            return;
+        }
+        this.value     = value;
+        this.exception = exception;
+        this.state     = DONE;
+        
+        Thread thread = waiter;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+        if (hasMonitorWaiters) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+        if (onComplete != null) {
+            onComplete.accept(value, exception);
+        }
+    }
+    
+    /**
+     * Wait for the callback. This method must be called by one thread.
+     * 
+     * @param waitTime
+     *            the wait time in millisecond or {@code null} for no timeout.
+     * @return true if the callback is called or false if timeout.
+     * @throws InterruptedException
+     *            when the current thread is interrupted.
+     */
+    boolean await(
+            Long waitTime)
+                    throws InterruptedException {
+        long deadline = (waitTime != null) ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitTime) : 0;
+        waiter = Thread.currentThread();
+        try {
+            while (state != DONE) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                if (waitTime == null) {
+                    LockSupport.park(this);
+                } else {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    LockSupport.parkNanos(this, remaining);
+                }
+            }
+            return true;
+        } finally {
+            waiter = null;
+        }
+    }
+    
+    /**
+     * Returns the value -- only valid once done.
+     * 
+     * @return the value.
+     */
+    T value() {
+        return value;
+    }
+    
+    /**
+     * Returns the exception -- only valid once done.
+     * 
+     * @return the exception.
+     */
+    Throwable exception() {
+        return exception;
+    }
+    
+    @Override
+    public boolean cancel(
+            boolean mayInterruptIfRunning) {
+        if (state != PENDING) {
+            return isCancelled();
+        }
+        this.accept(null, stackless ? StacklessSignals.cancelled() : new CancellationException());
+        return isCancelled();
+    }
+    
+    @Override
+    public boolean isCancelled() {
+        return (state == DONE) && (exception instanceof CancellationException);
+    }
+    
+    @Override
+    public boolean isDone() {
+        return (state == DONE);
+    }
+    
+    @Override
+    public T get()
+            throws InterruptedException, ExecutionException {
+        synchronized (this) {
+            hasMonitorWaiters = true;
+            while (state != DONE) {
+                wait();
+            }
+        }
+        return report();
+    }
+    
+    @Override
+    public T get(
+            long     timeout,
+            TimeUnit unit)
+                    throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (this) {
+            hasMonitorWaiters = true;
+            while (state != DONE) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new TimeoutException();
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+        }
+        return report();
+    }
+    
+    private T report()
+            throws ExecutionException {
+        if (exception == null) {
+            return value;
+        }
+        if (exception instanceof CancellationException) {
+            throw (CancellationException)exception;
+        }
+        Throwable cause = exception;
+        if ((cause instanceof CompletionException) && (cause.getCause() != null)) {
+            cause = cause.getCause();
+        }
+        throw new ExecutionException(cause);
+    }
+    
+}
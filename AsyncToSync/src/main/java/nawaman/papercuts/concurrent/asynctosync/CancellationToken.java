@@ -0,0 +1,151 @@
+package nawaman.papercuts.concurrent.asynctosync;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+
+/**
+ * The token given to the asynchronous work so it can stop early once no one is waiting for its result.
+ * 
+ * The token is tripped by {@link AsyncToSync#invokeCancellable(java.util.function.Function)} when the invocation
+ *   times out or the waiting thread is interrupted, and by {@link StructuredScope} when the scope is shut down (for
+ *   example, because a sibling subtask fails). The work can poll {@link #isCancelled()} (a volatile read) or register
+ *   listeners with {@link #onCancel(Runnable)} to, for example, cancel a query or close a connection.
+ * 
+ * @author NawaMan
+ */
+public final class CancellationToken {
+    
+    /** The reason the token is tripped. */
+    public static enum Reason {
+        /** No one is waiting anymore because of the timeout. */
+        TIMEOUT,
+        /** The waiting thread is interrupted. */
+        INTERRUPTED,
+        /** A sibling subtask of the scope fails. */
+        SIBLING_FAILED,
+        /** The scope is shut down. */
+        SHUTDOWN,
+        /** The token is cancelled explicitly. */
+        CANCELLED
+    }
+    
+    private volatile Reason reason = null;
+    
+    private List<Runnable> listeners = null;
+    
+    /**
+     * Check if the token is tripped.
+     * 
+     * @return true if the work should stop.
+     */
+    public boolean isCancelled() {
+        return reason != null;
+    }
+    
+    /**
+     * Returns the reason the token is tripped or {@code null} if not tripped.
+     * 
+     * @return the reason.
+     */
+    public Reason getReason() {
+        return reason;
+    }
+    
+    /**
+     * Throw {@link CancellationException} if the token is tripped.
+     * 
+     * @throws CancellationException
+     *            if the token is tripped.
+     */
+    public void throwIfCancelled()
+            throws CancellationException {
+        Reason currentReason = reason;
+        if (currentReason != null) {
+            throw new CancellationException("Cancelled: " + currentReason);
+        }
+    }
+    
+    /**
+     * Register the listener to be run (once) when the token is tripped. If the token is already tripped, the listener
+     *   is run right away by the current thread.
+     * 
+     * The listeners run on the thread that trips the token so they must be short and must not block.
+     * 
+     * @param listener
+     *            the listener.
+     * @return this token.
+     */
+    public CancellationToken onCancel(
+            Runnable listener) {
+        synchronized (this) {
+            if (reason == null) {
+                if (listeners == null) {
+                    listeners = new ArrayList<>(2);
+                }
+                listeners.add(listener);
+                return this;
+            }
+        }
+        runListener(listener);
+        return this;
+    }
+    
+    /**
+     * Cancel (and interrupt) the given future when the token is tripped.
+     * 
+     * @param future
+     *            the future.
+     * @return this token.
+     */
+    public CancellationToken cancelOnTrip(
+            Future<?> future) {
+        return onCancel(()->future.cancel(true));
+    }
+    
+    /**
+     * Trip the token explicitly.
+     * 
+     * @return true if the token is tripped by this call.
+     */
+    public boolean cancel() {
+        return trip(Reason.CANCELLED);
+    }
+    
+    /**
+     * Trip the token for the given reason. Only the first trip counts.
+     * 
+     * @param tripReason
+     *            the reason.
+     * @return true if the token is tripped by this call.
+     */
+    boolean trip(
+            Reason tripReason) {
+        List<Runnable> toRun;
+        synchronized (this) {
+            if (reason != null) {
+                return false;
+            }
+            reason    = tripReason;
+            toRun     = listeners;
+            listeners = null;
+        }
+        if (toRun != null) {
+            for (Runnable listener : toRun) {
+                runListener(listener);
+            }
+        }
+        return true;
+    }
+    
+    private static void runListener(
+            Runnable listener) {
+        try {
+            listener.run();
+        } catch (RuntimeException exception) {
+            // One failing listener must not prevent the others from being notified.
+        }
+    }
+    
+}
@@ -0,0 +1,102 @@
+package nawaman.papercuts.concurrent.asynctosync;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A {@link FutureTask} that signals its completion (from {@link #done()}) to a {@link CompletableFuture} view.
+ * 
+ * {@link AsyncToSync} recognizes this task and waits on the view directly -- no adapter thread blocking in
+ *   {@link FutureTask#get()} and no polling. Cancelling the view cancels the task.
+ * Use {@link AsyncToSyncExecutorService} to have an executor create this task for the submitted work.
+ * 
+ * @author NawaMan
+ */
+public class CompletableFutureTask<T> extends FutureTask<T> {
+    
+    private final View view = new View();
+    
+    private final long createdNanos = System.nanoTime();
+    
+    /**
+     * Constructs the task for the callable.
+     * 
+     * @param callable
+     *            the callable.
+     */
+    public CompletableFutureTask(
+            Callable<T> callable) {
+        super(callable);
+    }
+    
+    /**
+     * Constructs the task for the runnable.
+     * 
+     * @param runnable
+     *            the runnable.
+     * @param result
+     *            the result when the runnable completes successfully.
+     */
+    public CompletableFutureTask(
+            Runnable runnable,
+            T        result) {
+        super(runnable, result);
+    }
+    
+    /**
+     * Returns the completable future view of this task.
+     * 
+     * @return the completable future view.
+     */
+    public CompletableFuture<T> toCompletableFuture() {
+        return view;
+    }
+    
+    /**
+     * Returns when this task is created (as {@link System#nanoTime()}) -- taken as when the work is submitted.
+     * 
+     * @return the creation time.
+     */
+    long createdNanos() {
+        return createdNanos;
+    }
+    
+    @Override
+    protected void done() {
+        if (isCancelled()) {
+            view.cancelView();
+            return;
+        }
+        try {
+            view.complete(get());
+        } catch (ExecutionException exception) {
+            view.completeExceptionally(exception.getCause());
+        } catch (InterruptedException exception) {
+            // Does not happen as the task is already done.
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    // == AUX class ====================================================================================================
+    
+    /**
+     * The view whose cancellation cancels the task.
+     */
+    private class View extends CompletableFuture<T> {
+        
+        @Override
+        public boolean cancel(
+                boolean mayInterruptIfRunning) {
+            CompletableFutureTask.this.cancel(mayInterruptIfRunning);
+            return isCancelled();
+        }
+        
+        void cancelView() {
+            super.cancel(false);
+        }
+        
+    }
+    
+}
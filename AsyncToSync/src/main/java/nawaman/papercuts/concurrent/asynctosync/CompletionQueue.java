@@ -0,0 +1,181 @@
+package nawaman.papercuts.concurrent.asynctosync;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+/**
+ * A queue of the outcomes of many futures in the order they complete.
+ * 
+ * The futures are taken from the source as the outcomes are taken so that at most the window of them are waited for
+ *   at a time -- and so the queue never holds more than the window of outcomes. Only the outcomes are kept -- the
+ *   futures themselves are not referenced by the queue.
+ * The next outcome can also be taken without blocking (see {@link #nextAsync()}) -- for the non-blocking threads --
+ *   or only if it is already there (see {@link #poll()}).
+ * 
+ * @author NawaMan
+ */
+final class CompletionQueue<T> {
+    
+    private final ArrayDeque<Outcome<T>> completed = new ArrayDeque<>();
+    
+    private final ArrayDeque<CompletableFuture<Outcome<T>>> takers = new ArrayDeque<>();
+    
+    private final Iterator<? extends Future<T>> sources;
+    
+    private final BiFunction<Future<T>, Long, CompletableFuture<T>> prepare;
+    
+    private final int window;
+    
+    private final Long deadline;
+    
+    private int pending = 0;
+    
+    /**
+     * Constructs a queue.
+     * 
+     * @param sources
+     *            the futures (may be {@code null}).
+     * @param prepare
+     *            the function to prepare each future given the remaining wait time in millisecond (or {@code null}).
+     * @param window
+     *            the maximum number of futures waited for at a time.
+     * @param waitTime
+     *            the wait time in millisecond for all the futures or {@code null} for no timeout.
+     */
+    CompletionQueue(
+            Iterable<? extends Future<T>>                     sources,
+            BiFunction<Future<T>, Long, CompletableFuture<T>> prepare,
+            int                                               window,
+            Long                                              waitTime) {
+        this.sources  = (sources != null) ? sources.iterator() : Collections.<Future<T>>emptyIterator();
+        this.prepare  = prepare;
+        this.window   = Math.max(1, window);
+        this.deadline = (waitTime != null) ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitTime) : null;
+        fill();
+    }
+    
+    /**
+     * Check if there are more outcomes to be taken. This method must be called by one thread.
+     * 
+     * @return {@code true} if there are more outcomes.
+     */
+    boolean hasNext() {
+        return (pending > 0) || sources.hasNext();
+    }
+    
+    /**
+     * Wait for the next outcome until the deadline. This method must be called by one thread.
+     * 
+     * @return the next outcome or {@code null} if the deadline is passed.
+     * @throws InterruptedException
+     *            when the current thread is interrupted.
+     */
+    Outcome<T> next()
+            throws InterruptedException {
+        fill();
+        Outcome<T> outcome;
+        synchronized (this) {
+            while (((outcome = completed.poll()) == null) && !isDeadlinePassed()) {
+                if (deadline == null) {
+                    wait();
+                } else {
+                    TimeUnit.NANOSECONDS.timedWait(this, deadline - System.nanoTime());
+                }
+            }
+        }
+        // An outcome coming after its turn is timed out takes the turn of another one, so the count stays right.
+        pending--;
+        return outcome;
+    }
+    
+    /**
+     * Take the next outcome if it is already there -- otherwise give up the turn without taking any outcome (the
+     *   outcome coming later takes the turn of another one). This method must be called by one thread.
+     * 
+     * @return the next outcome or {@code null} if the turn is given up.
+     */
+    Outcome<T> poll() {
+        fill();
+        pending--;
+        synchronized (this) {
+            return completed.poll();
+        }
+    }
+    
+    private boolean isDeadlinePassed() {
+        return (deadline != null) && (deadline - System.nanoTime() <= 0);
+    }
+    
+    /**
+     * Take the next outcome without blocking. This method must be called by one thread.
+     * 
+     * @return the future of the next outcome -- completed with {@code null} if the deadline is passed.
+     */
+    CompletableFuture<Outcome<T>> nextAsync() {
+        fill();
+        pending--;
+        CompletableFuture<Outcome<T>> taker;
+        synchronized (this) {
+            Outcome<T> outcome = completed.poll();
+            if (outcome != null) {
+                return CompletableFuture.completedFuture(outcome);
+            }
+            taker = new CompletableFuture<>();
+            takers.add(taker);
+        }
+        if (deadline != null) {
+            SharedScheduler.instance().schedule(()->{
+                // The timed-out taker is skipped by the next outcome.
+                taker.complete(null);
+            }, Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        }
+        return taker;
+    }
+    
+    private void fill() {
+        while ((pending < window) && sources.hasNext()) {
+            add(sources.next());
+        }
+    }
+    
+    private void add(
+            Future<T> source) {
+        pending++;
+        if (source == null) {
+            offer(Outcome.noFuture());
+            return;
+        }
+        
+        Long remaining = (deadline != null)
+                       ? Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()))
+                       : null;
+        CompletableFuture<T> future = prepare.apply(source, remaining);
+        future.whenComplete((value, exception) -> {
+            offer(Outcome.of(value, exception));
+        });
+    }
+    
+    private void offer(
+            Outcome<T> outcome) {
+        while (true) {
+            CompletableFuture<Outcome<T>> taker;
+            synchronized (this) {
+                taker = takers.poll();
+                if (taker == null) {
+                    completed.add(outcome);
+                    notifyAll();
+                    return;
+                }
+            }
+            if (taker.complete(outcome)) {
+                return;
+            }
+        }
+    }
+    
+}
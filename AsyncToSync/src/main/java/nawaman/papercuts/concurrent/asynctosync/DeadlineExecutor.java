@@ -0,0 +1,219 @@
+package nawaman.papercuts.concurrent.asynctosync;
+
+import java.util.Iterator;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The executor serving the queued tasks earliest deadline first -- the default executor of the hedges and the
+ *   subtasks of the scopes of {@link AsyncToSync}. The adapters of the plain futures and the {@code parallely} tasks
+ *   block for as long as the futures take, so they run on their own threads by default (see
+ *   {@link AsyncToSync#internalExecutor(java.util.concurrent.Executor)}).
+ * 
+ * Each task carries the deadline of its caller (from {@code onTimeout}). When the pool is saturated, a caller with
+ *   little budget left is served before the callers with a lot of budget left, and a task whose deadline has already
+ *   passed when its turn comes is dropped without running (its drop action is run instead). A task without deadline
+ *   (such as those from {@link #execute(Runnable)}) is served as if its deadline is the implicit wait time after it
+ *   is submitted -- so, among themselves, in submission order and, unlike the tasks with deadline, never dropped nor
+ *   starved by a steady flow of the tasks with deadline.
+ * 
+ * @author NawaMan
+ */
+public class DeadlineExecutor extends ThreadPoolExecutor {
+    
+    /** The default implicit wait time in millisecond of the tasks without deadline. */
+    public static final long DEFAULT_IMPLICIT_WAIT = 1_000;
+    
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    
+    private final long implicitWaitNanos;
+    
+    private final AtomicLong sequence = new AtomicLong();
+    
+    private final LongAdder dropped = new LongAdder();
+    
+    /**
+     * Constructs an executor with the given number of daemon threads (started on demand and stopped when idle).
+     * 
+     * @param poolSize
+     *            the number of threads.
+     */
+    public DeadlineExecutor(
+            int poolSize) {
+        this(poolSize, DEFAULT_IMPLICIT_WAIT);
+    }
+    
+    /**
+     * Constructs an executor with the given number of daemon threads (started on demand and stopped when idle) and
+     *   the implicit wait time of the tasks without deadline.
+     * 
+     * @param poolSize
+     *            the number of threads.
+     * @param implicitWait
+     *            the implicit wait time in millisecond of the tasks without deadline.
+     */
+    public DeadlineExecutor(
+            int  poolSize,
+            long implicitWait) {
+        super(poolSize, poolSize, 30, TimeUnit.SECONDS, new PriorityBlockingQueue<>(), runnable->{
+            Thread thread = new Thread(runnable, "AsyncToSync-worker-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (implicitWait < 0) {
+            throw new IllegalArgumentException("Implicit wait time must not be negative: " + implicitWait);
+        }
+        this.implicitWaitNanos = TimeUnit.MILLISECONDS.toNanos(implicitWait);
+        allowCoreThreadTimeOut(true);
+    }
+    
+    /**
+     * Returns the executor shared by all AsyncToSync -- sized at four threads per processor (at least eight) as the
+     *   tasks mostly block.
+     * 
+     * @return the shared executor.
+     */
+    public static DeadlineExecutor shared() {
+        return Holder.INSTANCE;
+    }
+    
+    /**
+     * Execute the task without deadline.
+     * 
+     * @param command
+     *            the task.
+     */
+    @Override
+    public void execute(
+            Runnable command) {
+        if (command instanceof DeadlineTask) {
+            super.execute(command);
+        } else {
+            execute(command, 0, false, null);
+        }
+    }
+    
+    /**
+     * Execute the task with the deadline.
+     * 
+     * @param command
+     *            the task.
+     * @param deadline
+     *            the deadline in {@link System#nanoTime()}.
+     * @param onDropped
+     *            the action to run instead if the deadline has passed when the task is due to run (may be
+     *            {@code null}).
+     */
+    public void execute(
+            Runnable command,
+            long     deadline,
+            Runnable onDropped) {
+        execute(command, deadline, true, onDropped);
+    }
+    
+    private void execute(
+            Runnable command,
+            long     deadline,
+            boolean  hasDeadline,
+            Runnable onDropped) {
+        if (command == null) {
+            throw new NullPointerException();
+        }
+        long dueAt = hasDeadline ? deadline : (System.nanoTime() + implicitWaitNanos);
+        super.execute(new DeadlineTask(command, dueAt, hasDeadline, onDropped, sequence.getAndIncrement()));
+    }
+    
+    /**
+     * Remove the task (as given to {@code execute}) if it is still waiting in the queue.
+     * 
+     * @param task
+     *            the task.
+     * @return true if the task is removed.
+     */
+    @Override
+    public boolean remove(
+            Runnable task) {
+        Iterator<Runnable> iterator = getQueue().iterator();
+        while (iterator.hasNext()) {
+            Runnable queued = iterator.next();
+            if ((queued == task) || ((queued instanceof DeadlineTask) && (((DeadlineTask)queued).task == task))) {
+                // The iterator of a PriorityBlockingQueue is a snapshot, so remove from the queue itself.
+                return getQueue().remove(queued);
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Returns the number of the tasks dropped because their deadline had passed.
+     * 
+     * @return the number of the dropped tasks.
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+    
+    // == AUX class ====================================================================================================
+    
+    private final class DeadlineTask implements Runnable, Comparable<DeadlineTask> {
+        
+        private final Runnable task;
+        
+        /** The deadline or, without one, the implicit deadline to be served by. */
+        private final long deadline;
+        
+        private final boolean hasDeadline;
+        
+        private final Runnable onDropped;
+        
+        private final long order;
+        
+        DeadlineTask(
+                Runnable task,
+                long     deadline,
+                boolean  hasDeadline,
+                Runnable onDropped,
+                long     order) {
+            this.task        = task;
+            this.deadline    = deadline;
+            this.hasDeadline = hasDeadline;
+            this.onDropped   = onDropped;
+            this.order       = order;
+        }
+        
+        @Override
+        public void run() {
+            if (hasDeadline && ((System.nanoTime() - deadline) > 0)) {
+                dropped.increment();
+                if (onDropped != null) {
+                    onDropped.run();
+                }
+                return;
+            }
+            task.run();
+        }
+        
+        @Override
+        public int compareTo(
+                DeadlineTask other) {
+            if (deadline != other.deadline) {
+                // Compare by difference as nanoTime may overflow.
+                return ((deadline - other.deadline) < 0) ? -1 : 1;
+            }
+            return Long.compare(order, other.order);
+        }
+        
+    }
+    
+    private static final class Holder {
+        
+        static final DeadlineExecutor INSTANCE
+                = new DeadlineExecutor(Math.max(8, 4 * Runtime.getRuntime().availableProcessors()));
+        
+    }
+    
+}
@@ -0,0 +1,104 @@
+package nawaman.papercuts.concurrent.asynctosync;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * The exception handlers of an {@link AsyncToSync} registered by exception type.
+ * 
+ * The handler of an exception class is the one registered for its most specific super type (the first registered wins
+ *   among unrelated interfaces). It is resolved once per class and cached by these routes so finding it is a lookup
+ *   after the first use. The cache is bounded by the exception classes seen and goes away with the routes -- unlike a
+ *   {@link ClassValue}, it pins nothing on the exception classes (nor, through the handlers, the AsyncToSync).
+ * The routes are immutable -- registering a handler creates new routes.
+ * 
+ * @author NawaMan
+ */
+final class ExceptionRoutes<T> {
+    
+    /** The result when there is no handler for the exception or any of its causes. */
+    static final Object NO_ROUTE = new Object();
+    
+    private static final int MAX_CAUSE_DEPTH = 16;
+    
+    private final Map<Class<?>, Function<Object, ? extends T>> handlers;
+    
+    private final ConcurrentHashMap<Class<?>, Object> routes = new ConcurrentHashMap<>();
+    
+    ExceptionRoutes() {
+        this(Collections.emptyMap());
+    }
+    
+    private ExceptionRoutes(
+            Map<Class<?>, Function<Object, ? extends T>> handlers) {
+        this.handlers = handlers;
+    }
+    
+    /**
+     * Returns the routes with the handler added (or replaced) for the type.
+     * 
+     * @param type
+     *            the exception type.
+     * @param handler
+     *            the handler.
+     * @return the new routes.
+     */
+    ExceptionRoutes<T> with(
+            Class<?>                      type,
+            Function<Object, ? extends T> handler) {
+        Map<Class<?>, Function<Object, ? extends T>> newHandlers = new LinkedHashMap<>(handlers);
+        newHandlers.put(type, handler);
+        return new ExceptionRoutes<>(Collections.unmodifiableMap(newHandlers));
+    }
+    
+    /**
+     * Handle the exception with the handler of the exception or, if none, of its causes.
+     * 
+     * @param exception
+     *            the exception.
+     * @return the result of the handler or {@link #NO_ROUTE}.
+     */
+    Object handle(
+            Throwable exception) {
+        Throwable current = exception;
+        for (int depth = 0; (current != null) && (depth < MAX_CAUSE_DEPTH); depth++) {
+            Object route = route(current.getClass());
+            if (route != NO_ROUTE) {
+                @SuppressWarnings("unchecked")
+                Function<Object, ? extends T> handler = (Function<Object, ? extends T>)route;
+                return handler.apply(current);
+            }
+            Throwable cause = current.getCause();
+            current = (cause != current) ? cause : null;
+        }
+        return NO_ROUTE;
+    }
+    
+    private Object route(
+            Class<?> exceptionClass) {
+        // Look up first as computeIfAbsent locks even when the route is there.
+        Object route = routes.get(exceptionClass);
+        return (route != null) ? route : routes.computeIfAbsent(exceptionClass, this::resolve);
+    }
+    
+    private Object resolve(
+            Class<?> exceptionClass) {
+        Class<?>                      bestType    = null;
+        Function<Object, ? extends T> bestHandler = null;
+        for (Map.Entry<Class<?>, Function<Object, ? extends T>> entry : handlers.entrySet()) {
+            Class<?> type = entry.getKey();
+            if (!type.isAssignableFrom(exceptionClass)) {
+                continue;
+            }
+            if ((bestType == null) || (bestType.isAssignableFrom(type) && (bestType != type))) {
+                bestType    = type;
+                bestHandler = entry.getValue();
+            }
+        }
+        return (bestHandler != null) ? bestHandler : NO_ROUTE;
+    }
+    
+}
@@ -0,0 +1,335 @@
+package nawaman.papercuts.concurrent.asynctosync;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * The faults to be injected into the invocations of an {@link AsyncToSync} (see
+ *   {@link AsyncToSync#injectFaults(FaultInjection)}) to force the fallback paths under load.
+ * 
+ * For each future waited for (each element of the invocations of many futures, each callback and each subtask of
+ *   the scopes included) one random number decides which fault, if any, is injected:
+ * <ul>
+ *   <li>failure -- the future fails with {@link InjectedFaultException} (the {@code onException} path),</li>
+ *   <li>cancellation -- the future is cancelled (the {@code onCancelled} path),</li>
+ *   <li>interruption -- the future fails as if the asynchronous work is interrupted (the {@code onInterrupted}
+ *         path, the same as a real interruption of the work),</li>
+ *   <li>latency -- the result is delayed (the {@code onTimeout} path if the delay is long enough).</li>
+ * </ul>
+ * The fractions are of all the invocations and must not add up to more than one. A change is checked before it is
+ *   made, so a rejected one leaves the faults as they are, and the invocations see each change as a whole.
+ * 
+ * The random numbers are drawn from the seed and a shared counter (no lock nor retry loop), so the n-th draw is the
+ *   same across runs. With many threads, which invocation gets which draw depends on their interleaving -- so the
+ *   numbers of the injected faults are reproducible but not the invocations they fall on.
+ * 
+ * @author NawaMan
+ */
+public final class FaultInjection {
+    
+    /** The kinds of the faults. */
+    public static enum Fault {
+        /** The future fails. */
+        FAILURE,
+        /** The future is cancelled. */
+        CANCELLATION,
+        /** The future fails as interrupted. */
+        INTERRUPTION,
+        /** The result is delayed. */
+        LATENCY
+    }
+    
+    /** The exception of the injected failures. */
+    public static class InjectedFaultException extends RuntimeException {
+        
+        private static final long serialVersionUID = 3392870163284616093L;
+        
+        InjectedFaultException() {
+            super("Fault injected by AsyncToSync.", null, false, false);
+        }
+        
+    }
+    
+    private final long seed;
+    
+    private final AtomicLong draws = new AtomicLong();
+    
+    private volatile Fractions fractions = new Fractions(0, 0, 0, 0, 0);
+    
+    private final Map<Fault, LongAdder> injected = new EnumMap<>(Fault.class);
+    
+    /**
+     * Constructs a fault injection with the seed of the random source so runs can be repeated.
+     * 
+     * @param seed
+     *            the seed.
+     */
+    public FaultInjection(
+            long seed) {
+        this.seed = seed;
+        for (Fault fault : Fault.values()) {
+            injected.put(fault, new LongAdder());
+        }
+    }
+    
+    /**
+     * Fail the given fraction of the invocations.
+     * 
+     * @param fraction
+     *            the fraction (0.0 to 1.0).
+     * @return this fault injection.
+     */
+    public synchronized FaultInjection fail(
+            double fraction) {
+        Fractions current = fractions;
+        fractions = new Fractions(
+                checkFraction(fraction),
+                current.cancellation,
+                current.interruption,
+                current.latency,
+                current.latencyMillis);
+        return this;
+    }
+    
+    /**
+     * Cancel the given fraction of the invocations.
+     * 
+     * @param fraction
+     *            the fraction (0.0 to 1.0).
+     * @return this fault injection.
+     */
+    public synchronized FaultInjection cancel(
+            double fraction) {
+        Fractions current = fractions;
+        fractions = new Fractions(
+                current.failure,
+                checkFraction(fraction),
+                current.interruption,
+                current.latency,
+                current.latencyMillis);
+        return this;
+    }
+    
+    /**
+     * Fail the given fraction of the invocations as if the asynchronous work is interrupted.
+     * 
+     * @param fraction
+     *            the fraction (0.0 to 1.0).
+     * @return this fault injection.
+     */
+    public synchronized FaultInjection interrupt(
+            double fraction) {
+        Fractions current = fractions;
+        fractions = new Fractions(
+                current.failure,
+                current.cancellation,
+                checkFraction(fraction),
+                current.latency,
+                current.latencyMillis);
+        return this;
+    }
+    
+    /**
+     * Delay the result of the given fraction of the invocations.
+     * 
+     * @param fraction
+     *            the fraction (0.0 to 1.0).
+     * @param millis
+     *            the added latency in millisecond.
+     * @return this fault injection.
+     */
+    public synchronized FaultInjection delay(
+            double fraction,
+            long   millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Latency must not be negative: " + millis);
+        }
+        Fractions current = fractions;
+        fractions = new Fractions(
+                current.failure,
+                current.cancellation,
+                current.interruption,
+                checkFraction(fraction),
+                millis);
+        return this;
+    }
+    
+    /**
+     * Returns the number of the injected faults of the given kind.
+     * 
+     * @param fault
+     *            the kind of the faults.
+     * @return the number of the injected faults.
+     */
+    public long getInjectedCount(
+            Fault fault) {
+        return injected.get(fault).sum();
+    }
+    
+    /**
+     * Inject the fault (if any) into the invocation of the future.
+     * 
+     * @param future
+     *            the future.
+     * @return the future to be waited for.
+     */
+    <T> CompletableFuture<T> inject(
+            CompletableFuture<T> future) {
+        Fractions fractions = this.fractions;
+        Fault     fault     = draw(fractions);
+        if (fault == null) {
+            return future;
+        }
+        if (fault == Fault.LATENCY) {
+            CompletableFuture<T> delayed = new CompletableFuture<>();
+            future.whenComplete((value, exception)->{
+                delay(fractions.latencyMillis, ()->{
+                    if (exception != null) {
+                        delayed.completeExceptionally(exception);
+                    } else {
+                        delayed.complete(value);
+                    }
+                });
+            });
+            return delayed;
+        }
+        CompletableFuture<T> faulty = new CompletableFuture<>();
+        if (fault == Fault.CANCELLATION) {
+            faulty.cancel(false);
+        } else {
+            faulty.completeExceptionally(failure(fault));
+        }
+        return faulty;
+    }
+    
+    /**
+     * Inject the fault (if any) into the invocation of the callback-style API.
+     * 
+     * @param callback
+     *            the callback waited for.
+     * @return the callback to be given to the API.
+     */
+    <T> BiConsumer<T, Throwable> inject(
+            CallbackFuture<T> callback) {
+        Fractions fractions = this.fractions;
+        Fault     fault     = draw(fractions);
+        if (fault == null) {
+            return callback;
+        }
+        if (fault == Fault.LATENCY) {
+            return (value, exception)->{
+                delay(fractions.latencyMillis, ()->callback.accept(value, exception));
+            };
+        }
+        if (fault == Fault.CANCELLATION) {
+            callback.cancel(false);
+        } else {
+            callback.accept(null, failure(fault));
+        }
+        return callback;
+    }
+    
+    private Fault draw(
+            Fractions fractions) {
+        double draw  = nextDouble();
+        double bound = fractions.failure;
+        if (draw < bound) {
+            return count(Fault.FAILURE);
+        }
+        bound += fractions.cancellation;
+        if (draw < bound) {
+            return count(Fault.CANCELLATION);
+        }
+        bound += fractions.interruption;
+        if (draw < bound) {
+            return count(Fault.INTERRUPTION);
+        }
+        bound += fractions.latency;
+        if (draw < bound) {
+            return count(Fault.LATENCY);
+        }
+        return null;
+    }
+    
+    private Fault count(
+            Fault fault) {
+        injected.get(fault).increment();
+        return fault;
+    }
+    
+    /**
+     * Returns the next random number (0.0 inclusive to 1.0 exclusive) -- the SplitMix64 of the seeded counter.
+     */
+    private double nextDouble() {
+        long z = seed + draws.getAndIncrement() * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        z =  z ^ (z >>> 31);
+        return (z >>> 11) * 0x1.0p-53;
+    }
+    
+    private Throwable failure(
+            Fault fault) {
+        if (fault == Fault.INTERRUPTION) {
+            // As the interrupted work -- the same as the interrupted cause of a real one.
+            return new AsyncToSyncException(new InterruptedException("Interruption injected by AsyncToSync."), false);
+        }
+        return new InjectedFaultException();
+    }
+    
+    private void delay(
+            long     latencyMillis,
+            Runnable completion) {
+        SharedScheduler.instance().schedule(completion, latencyMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    private static double checkFraction(
+            double fraction) {
+        if (!(fraction >= 0) || (fraction > 1)) {
+            throw new IllegalArgumentException("Fraction must be between 0.0 and 1.0: " + fraction);
+        }
+        return fraction;
+    }
+    
+    // == AUX class ====================================================================================================
+    
+    /**
+     * The fractions of the faults -- immutable so the invocations see a checked whole.
+     */
+    private static final class Fractions {
+        
+        final double failure;
+        
+        final double cancellation;
+        
+        final double interruption;
+        
+        final double latency;
+        
+        final long latencyMillis;
+        
+        Fractions(
+                double failure,
+                double cancellation,
+                double interruption,
+                double latency,
+                long   latencyMillis) {
+            double total = failure + cancellation + interruption + latency;
+            if (total > 1) {
+                throw new IllegalArgumentException("Fractions must not add up to more than 1.0: " + total);
+            }
+            this.failure       = failure;
+            this.cancellation  = cancellation;
+            this.interruption  = interruption;
+            this.latency       = latency;
+            this.latencyMillis = latencyMillis;
+        }
+        
+    }
+    
+}
@@ -0,0 +1,268 @@
+package nawaman.papercuts.concurrent.asynctosync;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * The speculative delayed hedging of an {@link AsyncToSync}.
+ * 
+ * The first attempt is issued right away. Only if it has not completed after the delay, one more attempt is issued
+ *   (by the given executor, not the scheduler thread) and so on until the maximum number of hedges is reached. The
+ *   first successful attempt wins and the others are cancelled. A failed attempt only completes the call if no other
+ *   attempt is still running.
+ * The latency observed for the p95 is of the whole call -- from its first attempt to its result -- so the slow
+ *   attempts losing to a hedge still count and the delay does not ratchet down.
+ * 
+ * @author NawaMan
+ */
+final class Hedging {
+    
+    /** The minimum number of observed latencies before the p95 is used as the delay. */
+    static final int MIN_SAMPLES = 20;
+    
+    private final long delay;
+    
+    private final int maxHedges;
+    
+    private final LatencyWindow latencies = new LatencyWindow(256, 0.95);
+    
+    private final LongAdder fired = new LongAdder();
+    
+    private final LongAdder won = new LongAdder();
+    
+    /**
+     * Constructs a hedging.
+     * 
+     * @param delay
+     *            the delay in millisecond before hedging or negative to use the observed p95.
+     * @param maxHedges
+     *            the maximum number of extra attempts.
+     */
+    Hedging(
+            long delay,
+            int  maxHedges) {
+        if (maxHedges < 0) {
+            throw new IllegalArgumentException("Maximum hedges must not be negative: " + maxHedges);
+        }
+        this.delay     = delay;
+        this.maxHedges = maxHedges;
+    }
+    
+    /**
+     * Returns the number of hedges fired.
+     * 
+     * @return the number of hedges fired.
+     */
+    long fired() {
+        return fired.sum();
+    }
+    
+    /**
+     * Returns the number of hedges that won.
+     * 
+     * @return the number of hedges that won.
+     */
+    long won() {
+        return won.sum();
+    }
+    
+    /**
+     * Start the hedged call.
+     * 
+     * @param supplier
+     *            the supplier of the attempts.
+     * @param stackless
+     *            true if the losers are cancelled with a stackless exception (see {@link AsyncToSync#stackless()}).
+     * @param executor
+     *            the executor issuing the hedges.
+     * @return the call.
+     */
+    <T> Call<T> call(
+            Supplier<? extends CompletableFuture<T>> supplier,
+            boolean                                  stackless,
+            Executor                                 executor) {
+        Call<T> call = new Call<>(supplier, stackless, executor);
+        call.attempt();
+        return call;
+    }
+    
+    private long hedgeDelayMillis() {
+        if (delay >= 0) {
+            return delay;
+        }
+        if (latencies.count() < MIN_SAMPLES) {
+            return -1;
+        }
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(latencies.percentile()));
+    }
+    
+    // == AUX class ====================================================================================================
+    
+    /**
+     * One hedged call.
+     */
+    final class Call<T> {
+        
+        private final Supplier<? extends CompletableFuture<T>> supplier;
+        
+        private final boolean stackless;
+        
+        private final Executor executor;
+        
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        
+        private final long start = System.nanoTime();
+        
+        private final AtomicReferenceArray<CompletableFuture<T>> attempts;
+        
+        private final AtomicInteger launched = new AtomicInteger();
+        
+        private final AtomicInteger inFlight = new AtomicInteger();
+        
+        private final AtomicBoolean decided = new AtomicBoolean();
+        
+        private final AtomicReference<ScheduledFuture<?>> nextHedge = new AtomicReference<>();
+        
+        Call(
+                Supplier<? extends CompletableFuture<T>> supplier,
+                boolean                                  stackless,
+                Executor                                 executor) {
+            this.supplier  = supplier;
+            this.stackless = stackless;
+            this.executor  = executor;
+            this.attempts  = new AtomicReferenceArray<>(maxHedges + 1);
+            result.whenComplete((value, exception) -> {
+                if (exception == null) {
+                    latencies.record(System.nanoTime() - start);
+                }
+                stopHedging();
+                cancelAttempts();
+            });
+        }
+        
+        /**
+         * Returns the future of the result.
+         * 
+         * @return the future of the result.
+         */
+        CompletableFuture<T> result() {
+            return result;
+        }
+        
+        /**
+         * Stop issuing more hedges. The running attempts are not affected.
+         */
+        void stopHedging() {
+            ScheduledFuture<?> hedge = nextHedge.getAndSet(null);
+            if (hedge != null) {
+                hedge.cancel(false);
+            }
+        }
+        
+        void attempt() {
+            if (result.isDone()) {
+                return;
+            }
+            int index = launched.getAndIncrement();
+            if (index > maxHedges) {
+                return;
+            }
+            if (index > 0) {
+                fired.increment();
+            }
+            
+            inFlight.incrementAndGet();
+            CompletableFuture<T> attempt;
+            try {
+                attempt = supplier.get();
+                if (attempt == null) {
+                    attempt = new CompletableFuture<>();
+                    attempt.completeExceptionally(new NullPointerException("The supplier returns null future."));
+                }
+            } catch (RuntimeException exception) {
+                attempt = new CompletableFuture<>();
+                attempt.completeExceptionally(exception);
+            }
+            attempts.set(index, attempt);
+            
+            attempt.whenComplete((value, exception) -> {
+                int stillInFlight = inFlight.decrementAndGet();
+                if (exception == null) {
+                    if (!result.isDone() && decided.compareAndSet(false, true)) {
+                        // Count before completing so the stats are up to date once the waiting thread wakes up.
+                        if (index > 0) {
+                            won.increment();
+                        }
+                        result.complete(value);
+                    }
+                } else if (stillInFlight == 0) {
+                    result.completeExceptionally(exception);
+                }
+            });
+            
+            if (result.isDone()) {
+                cancelAttempts();
+                return;
+            }
+            scheduleHedge();
+        }
+        
+        private void scheduleHedge() {
+            if (launched.get() > maxHedges) {
+                return;
+            }
+            long hedgeDelay = hedgeDelayMillis();
+            if (hedgeDelay < 0) {
+                return;
+            }
+            // Only the timing is on the scheduler -- the supplier may be slow so it is called by the executor.
+            ScheduledFuture<?> hedge = SharedScheduler.instance().schedule(
+                    this::issueHedge,
+                    hedgeDelay,
+                    TimeUnit.MILLISECONDS);
+            ScheduledFuture<?> previous = nextHedge.getAndSet(hedge);
+            if (previous != null) {
+                previous.cancel(false);
+            }
+            if (result.isDone()) {
+                stopHedging();
+            }
+        }
+        
+        private void issueHedge() {
+            if (result.isDone()) {
+                return;
+            }
+            try {
+                executor.execute(this::attempt);
+            } catch (RejectedExecutionException exception) {
+                // No hedge then -- the attempts in flight carry on.
+            }
+        }
+        
+        private void cancelAttempts() {
+            for (int i = 0; i < attempts.length(); i++) {
+                CompletableFuture<T> attempt = attempts.get(i);
+                if ((attempt != null) && !attempt.isDone()) {
+                    if (stackless) {
+                        // A new one as the holder of the attempt may get it thrown.
+                        attempt.completeExceptionally(StacklessSignals.cancelled());
+                    } else {
+                        attempt.cancel(true);
+                    }
+                }
+            }
+        }
+        
+    }
+    
+}
@@ -0,0 +1,85 @@
+package nawaman.papercuts.concurrent.asynctosync;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The last known good values of an {@link AsyncToSync} by key, bounded in the number of keys.
+ * 
+ * The values are kept in a ConcurrentHashMap so reading and refreshing never lock. Once a new key brings the number of
+ *   keys over the bound, the keys added first are evicted (first in, first out) so a high-cardinality key space only
+ *   keeps the most recently added keys instead of growing without limit.
+ * 
+ * @author NawaMan
+ */
+final class LastKnownGoods<T> {
+    
+    /** The default maximum number of keys. */
+    static final int DEFAULT_MAX_KEYS = 1024;
+    
+    private final ConcurrentHashMap<Object, T> values = new ConcurrentHashMap<>();
+    
+    private final ConcurrentLinkedQueue<Object> keys = new ConcurrentLinkedQueue<>();
+    
+    private final int maxKeys;
+    
+    /**
+     * Constructs the values.
+     * 
+     * @param maxKeys
+     *            the maximum number of keys.
+     */
+    LastKnownGoods(
+            int maxKeys) {
+        if (maxKeys <= 0) {
+            throw new IllegalArgumentException("Maximum keys must be positive: " + maxKeys);
+        }
+        this.maxKeys = maxKeys;
+    }
+    
+    /**
+     * Returns the value of the key or {@code null} if there is none.
+     * 
+     * @param key
+     *            the key.
+     * @return the value.
+     */
+    T get(
+            Object key) {
+        return values.get(key);
+    }
+    
+    /**
+     * Keep the value of the key.
+     * 
+     * @param key
+     *            the key.
+     * @param value
+     *            the value (not {@code null}).
+     */
+    void put(
+            Object key,
+            T      value) {
+        if (values.put(key, value) != null) {
+            return;
+        }
+        keys.add(key);
+        while (values.size() > maxKeys) {
+            Object eldest = keys.poll();
+            if (eldest == null) {
+                break;
+            }
+            values.remove(eldest);
+        }
+    }
+    
+    /**
+     * Returns the number of keys.
+     * 
+     * @return the number of keys.
+     */
+    int size() {
+        return values.size();
+    }
+    
+}
@@ -0,0 +1,93 @@
+package nawaman.papercuts.concurrent.asynctosync;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A window of the most recent latencies used to estimate a percentile.
+ * 
+ * Recording is lock-free. The percentile is recomputed (by sorting a copy of the window) only once every few records
+ *   so reading it is cheap.
+ * 
+ * @author NawaMan
+ */
+final class LatencyWindow {
+    
+    private static final int RECOMPUTE_EVERY = 32;
+    
+    private final AtomicLongArray latencies;
+    
+    private final AtomicLong count = new AtomicLong();
+    
+    private volatile long cachedCount = -1;
+    
+    private volatile long cachedPercentile = -1;
+    
+    private final double percentile;
+    
+    /**
+     * Constructs a window.
+     * 
+     * @param size
+     *            the number of latencies to keep.
+     * @param percentile
+     *            the percentile to estimate (0.0 to 1.0).
+     */
+    LatencyWindow(
+            int    size,
+            double percentile) {
+        this.latencies = new AtomicLongArray(size);
+        this.percentile = percentile;
+    }
+    
+    /**
+     * Record a latency.
+     * 
+     * @param latency
+     *            the latency.
+     */
+    void record(
+            long latency) {
+        long index = count.getAndIncrement();
+        latencies.set((int)(index % latencies.length()), latency);
+    }
+    
+    /**
+     * Returns the number of recorded latencies.
+     * 
+     * @return the number of recorded latencies.
+     */
+    long count() {
+        return count.get();
+    }
+    
+    /**
+     * Returns the estimated percentile or -1 if nothing has been recorded.
+     * 
+     * @return the percentile.
+     */
+    long percentile() {
+        long currentCount = count.get();
+        if (currentCount == 0) {
+            return -1;
+        }
+        if ((cachedCount >= 0) && ((currentCount - cachedCount) < RECOMPUTE_EVERY)) {
+            return cachedPercentile;
+        }
+        
+        int    size   = (int)Math.min(currentCount, latencies.length());
+        long[] values = new long[size];
+        for (int i = 0; i < size; i++) {
+            values[i] = latencies.get(i);
+        }
+        Arrays.sort(values);
+        int  index = (int)Math.min(size - 1, Math.ceil(percentile * size) - 1);
+        long value = values[Math.max(0, index)];
+        
+        cachedPercentile = value;
+        cachedCount      = currentCount;
+        return value;
+    }
+    
+}
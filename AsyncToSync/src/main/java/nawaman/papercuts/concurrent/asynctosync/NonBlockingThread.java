@@ -0,0 +1,12 @@
+package nawaman.papercuts.concurrent.asynctosync;
+
+/**
+ * The marker of threads that must not block (such as event-loop threads).
+ * 
+ * A thread implementing this interface is detected by {@link NonBlockingThreads#isNonBlocking(Thread)}.
+ * 
+ * @author NawaMan
+ */
+public interface NonBlockingThread {
+    
+}
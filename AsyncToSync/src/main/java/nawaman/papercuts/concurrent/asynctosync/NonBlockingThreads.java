@@ -0,0 +1,212 @@
+package nawaman.papercuts.concurrent.asynctosync;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * The detection of the threads that must not block (such as event-loop threads).
+ * 
+ * A thread is non-blocking if it implements {@link NonBlockingThread}, is marked with {@link #markCurrentThread()},
+ *   belongs to a registered thread group or has a name matching a registered pattern.
+ * The result for the current thread is cached (until its name or the registrations change) so the check is cheap.
+ * 
+ * See {@link AsyncToSync#onNonBlockingThread(java.util.function.Function)} for what an invocation does when called
+ *   from a non-blocking thread.
+ * 
+ * @author NawaMan
+ */
+public final class NonBlockingThreads {
+    
+    /** The thread-name patterns of the well-known event loops (Netty and Vert.x). */
+    public static final String[] EVENT_LOOP_PATTERNS = {
+            "nioEventLoopGroup-\\d+-\\d+",
+            "epollEventLoopGroup-\\d+-\\d+",
+            "kqueueEventLoopGroup-\\d+-\\d+",
+            "vert\\.x-eventloop-thread-\\d+"
+    };
+    
+    private static final CopyOnWriteArrayList<Pattern> namePatterns = new CopyOnWriteArrayList<>();
+    
+    private static final Set<ThreadGroup> threadGroups = ConcurrentHashMap.newKeySet();
+    
+    private static final AtomicInteger version = new AtomicInteger();
+    
+    private static final ThreadLocal<Boolean> marked = new ThreadLocal<>();
+    
+    private static final ThreadLocal<Detection> detection = new ThreadLocal<>();
+    
+    private static final LongAdder blockingCallCount = new LongAdder();
+    
+    private static volatile Consumer<Thread> blockingCallListener = null;
+    
+    private NonBlockingThreads() {
+    }
+    
+    /**
+     * Mark the current thread as non-blocking.
+     */
+    public static void markCurrentThread() {
+        marked.set(Boolean.TRUE);
+    }
+    
+    /**
+     * Unmark the current thread as non-blocking.
+     */
+    public static void unmarkCurrentThread() {
+        marked.remove();
+    }
+    
+    /**
+     * Register the thread-name pattern of the non-blocking threads.
+     * 
+     * @param regex
+     *            the regular expression of the thread names.
+     */
+    public static void addThreadNamePattern(
+            String regex) {
+        namePatterns.add(Pattern.compile(regex));
+        version.incrementAndGet();
+    }
+    
+    /**
+     * Register the thread-name patterns of the well-known event loops (see {@link #EVENT_LOOP_PATTERNS}).
+     */
+    public static void detectEventLoops() {
+        for (String regex : EVENT_LOOP_PATTERNS) {
+            addThreadNamePattern(regex);
+        }
+    }
+    
+    /**
+     * Register the thread group of the non-blocking threads.
+     * 
+     * @param threadGroup
+     *            the thread group.
+     */
+    public static void addThreadGroup(
+            ThreadGroup threadGroup) {
+        threadGroups.add(threadGroup);
+        version.incrementAndGet();
+    }
+    
+    /**
+     * Remove all the registered patterns and thread groups.
+     */
+    public static void clear() {
+        namePatterns.clear();
+        threadGroups.clear();
+        version.incrementAndGet();
+    }
+    
+    /**
+     * Check if the current thread must not block.
+     * 
+     * @return true if the current thread is non-blocking.
+     */
+    public static boolean isCurrentThreadNonBlocking() {
+        Thread thread = Thread.currentThread();
+        if ((thread instanceof NonBlockingThread) || (marked.get() != null)) {
+            return true;
+        }
+        
+        String    name           = thread.getName();
+        int       currentVersion = version.get();
+        Detection cached         = detection.get();
+        if ((cached != null) && (cached.version == currentVersion) && cached.name.equals(name)) {
+            return cached.isNonBlocking;
+        }
+        
+        boolean isNonBlocking = isRegistered(thread, name);
+        detection.set(new Detection(name, currentVersion, isNonBlocking));
+        return isNonBlocking;
+    }
+    
+    /**
+     * Check if the given thread must not block.
+     * 
+     * @param thread
+     *            the thread.
+     * @return true if the thread is non-blocking.
+     */
+    public static boolean isNonBlocking(
+            Thread thread) {
+        if (thread == Thread.currentThread()) {
+            return isCurrentThreadNonBlocking();
+        }
+        return (thread instanceof NonBlockingThread) || isRegistered(thread, thread.getName());
+    }
+    
+    private static boolean isRegistered(
+            Thread thread,
+            String name) {
+        ThreadGroup group = thread.getThreadGroup();
+        while (group != null) {
+            if (threadGroups.contains(group)) {
+                return true;
+            }
+            group = group.getParent();
+        }
+        for (Pattern pattern : namePatterns) {
+            if (pattern.matcher(name).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Returns the number of blocking calls attempted on non-blocking threads.
+     * 
+     * @return the number of blocking calls.
+     */
+    public static long getBlockingCallCount() {
+        return blockingCallCount.sum();
+    }
+    
+    /**
+     * Set the listener to be notified (with the thread) each time a blocking call is attempted on a non-blocking
+     *   thread.
+     * 
+     * @param listener
+     *            the listener (or {@code null} to remove).
+     */
+    public static void setBlockingCallListener(
+            Consumer<Thread> listener) {
+        blockingCallListener = listener;
+    }
+    
+    static void reportBlockingCall() {
+        blockingCallCount.increment();
+        Consumer<Thread> listener = blockingCallListener;
+        if (listener != null) {
+            listener.accept(Thread.currentThread());
+        }
+    }
+    
+    // == AUX class ====================================================================================================
+    
+    private static final class Detection {
+        
+        final String name;
+        
+        final int version;
+        
+        final boolean isNonBlocking;
+        
+        Detection(
+                String  name,
+                int     version,
+                boolean isNonBlocking) {
+            this.name          = name;
+            this.version       = version;
+            this.isNonBlocking = isNonBlocking;
+        }
+        
+    }
+    
+}
@@ -0,0 +1,94 @@
+package nawaman.papercuts.concurrent.asynctosync;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The outcome of one asynchronous call -- either a value or an exception.
+ * 
+ * @author NawaMan
+ */
+final class Outcome<T> {
+    
+    @SuppressWarnings("rawtypes")
+    private static final Outcome NO_FUTURE = new Outcome<>(null, null);
+    
+    private final T value;
+    
+    private final Throwable exception;
+    
+    private Outcome(
+            T         value,
+            Throwable exception) {
+        this.value     = value;
+        this.exception = exception;
+    }
+    
+    /**
+     * Returns the outcome of the call completed with the value and exception (as given to
+     *   {@link java.util.concurrent.CompletableFuture#whenComplete whenComplete}).
+     * 
+     * @param value
+     *            the value.
+     * @param exception
+     *            the exception or {@code null} if the call is successful.
+     * @return the outcome.
+     */
+    static <T> Outcome<T> of(
+            T         value,
+            Throwable exception) {
+        return new Outcome<>(value, exception);
+    }
+    
+    /**
+     * Returns the outcome of the call that has no future.
+     * 
+     * @return the outcome.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> Outcome<T> noFuture() {
+        return NO_FUTURE;
+    }
+    
+    /**
+     * Returns true if there was no future to be called.
+     * 
+     * @return true if there was no future.
+     */
+    boolean isNoFuture() {
+        return this == NO_FUTURE;
+    }
+    
+    /**
+     * Returns the value.
+     * 
+     * @return the value.
+     */
+    T value() {
+        return value;
+    }
+    
+    /**
+     * Returns the exception or {@code null} if the call is successful.
+     * 
+     * @return the exception.
+     */
+    Throwable exception() {
+        return exception;
+    }
+    
+    /**
+     * Complete the future with this outcome (with {@code null} value if there was no future).
+     * 
+     * @param future
+     *            the future.
+     */
+    void completeTo(
+            CompletableFuture<? super T> future) {
+        if (exception != null) {
+            future.completeExceptionally(exception);
+        } else {
+            future.complete(value);
+        }
+    }
+    
+}
@@ -0,0 +1,151 @@
+package nawaman.papercuts.concurrent.asynctosync;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+
+/**
+ * Calls an asynchronous function for each input while keeping at most the given number of futures in flight.
+ * 
+ * The next input is started as soon as any in-flight future completes. Futures completing right away are handled
+ *   by a drain loop (instead of recursion) so the stack does not grow with the number of inputs.
+ * 
+ * @author NawaMan
+ */
+final class ParallelWindow<I, T> {
+    
+    private final List<? extends I> inputs;
+    
+    private final Function<? super I, ? extends CompletableFuture<T>> function;
+    
+    private final AtomicReferenceArray<Outcome<T>> outcomes;
+    
+    private final CountDownLatch remaining;
+    
+    private final AtomicInteger next = new AtomicInteger();
+    
+    private final AtomicInteger wip = new AtomicInteger();
+    
+    private volatile boolean stopped = false;
+    
+    private volatile List<CompletableFuture<T>> elements = null;
+    
+    /**
+     * Constructs a window.
+     * 
+     * @param inputs
+     *            the inputs.
+     * @param function
+     *            the asynchronous function.
+     */
+    ParallelWindow(
+            List<? extends I>                                   inputs,
+            Function<? super I, ? extends CompletableFuture<T>> function) {
+        this.inputs    = inputs;
+        this.function  = function;
+        this.outcomes  = new AtomicReferenceArray<>(inputs.size());
+        this.remaining = new CountDownLatch(inputs.size());
+    }
+    
+    /**
+     * Returns the futures of the calls in the order of the inputs -- each is completed as its call completes. This is
+     *   for the caller not waiting for the latch and must be called before the calls are started.
+     * 
+     * @return the futures of the calls.
+     */
+    List<CompletableFuture<T>> elements() {
+        List<CompletableFuture<T>> elements = new ArrayList<>(inputs.size());
+        for (int i = 0; i < inputs.size(); i++) {
+            elements.add(new CompletableFuture<>());
+        }
+        this.elements = elements;
+        return elements;
+    }
+    
+    /**
+     * Start the calls.
+     * 
+     * @param parallelism
+     *            the maximum number of futures in flight.
+     * @return the latch that reaches zero when all calls are completed.
+     */
+    CountDownLatch start(
+            int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("Parallelism must be positive: " + parallelism);
+        }
+        int initial = Math.min(parallelism, inputs.size());
+        for (int i = 0; i < initial; i++) {
+            launchNext();
+        }
+        return remaining;
+    }
+    
+    /**
+     * Stop starting the calls. The in-flight futures are not affected.
+     */
+    void stop() {
+        stopped = true;
+    }
+    
+    /**
+     * Returns the outcome of the call at the given index or {@code null} if it is not completed.
+     * 
+     * @param index
+     *            the index.
+     * @return the outcome.
+     */
+    Outcome<T> outcome(
+            int index) {
+        return outcomes.get(index);
+    }
+    
+    private void launchNext() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        do {
+            if (!stopped) {
+                int index = next.getAndIncrement();
+                if (index < inputs.size()) {
+                    launch(index);
+                }
+            }
+        } while (wip.decrementAndGet() != 0);
+    }
+    
+    private void launch(
+            int index) {
+        CompletableFuture<T> future;
+        try {
+            future = function.apply(inputs.get(index));
+        } catch (RuntimeException exception) {
+            complete(index, Outcome.of(null, exception));
+            return;
+        }
+        if (future == null) {
+            complete(index, Outcome.noFuture());
+            return;
+        }
+        future.whenComplete((value, exception) -> {
+            complete(index, Outcome.of(value, exception));
+        });
+    }
+    
+    private void complete(
+            int        index,
+            Outcome<T> outcome) {
+        outcomes.set(index, outcome);
+        remaining.countDown();
+        List<CompletableFuture<T>> elements = this.elements;
+        if (elements != null) {
+            outcome.completeTo(elements.get(index));
+        }
+        launchNext();
+    }
+    
+}
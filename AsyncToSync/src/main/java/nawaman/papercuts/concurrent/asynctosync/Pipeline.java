@@ -0,0 +1,210 @@
+package nawaman.papercuts.concurrent.asynctosync;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * A chain of asynchronous stages (such as fetch, then enrich, then persist) to be waited for only once with
+ *   {@link AsyncToSync#invokePipeline(Pipeline)}.
+ * 
+ * Each stage starts when the previous one completes and may have its own fallback (see {@link #orElse(Function)}).
+ * The stages are composed into one future so the caller is parked once and woken only when the final stage finishes;
+ *   the {@code onTimeout} of the AsyncToSync is the deadline of the whole pipeline. Once the invocation returns (for
+ *   example, because of the timeout), the running stage is cancelled and no further stage is started.
+ * 
+ * A pipeline is immutable and can be invoked many times.
+ * 
+ * @author NawaMan
+ */
+public final class Pipeline<R> {
+    
+    private final Pipeline<?> previous;
+    
+    private final String name;
+    
+    private final Function<Object, ? extends CompletableFuture<?>> stage;
+    
+    private final Function<? super Throwable, ? extends R> fallback;
+    
+    private final BiConsumer<String, Long> stageTimeReporter;
+    
+    private Pipeline(
+            Pipeline<?>                                      previous,
+            String                                           name,
+            Function<Object, ? extends CompletableFuture<?>> stage,
+            Function<? super Throwable, ? extends R>         fallback,
+            BiConsumer<String, Long>                         stageTimeReporter) {
+        this.previous          = previous;
+        this.name              = name;
+        this.stage             = stage;
+        this.fallback          = fallback;
+        this.stageTimeReporter = stageTimeReporter;
+    }
+    
+    /**
+     * Start a pipeline with its first stage.
+     * 
+     * @param name
+     *            the name of the stage.
+     * @param stage
+     *            the supplier of the future of the stage.
+     * @return the pipeline.
+     */
+    public static <R> Pipeline<R> start(
+            String                                   name,
+            Supplier<? extends CompletableFuture<R>> stage) {
+        return new Pipeline<R>(null, name, input->stage.get(), null, null);
+    }
+    
+    /**
+     * Add a stage to be started with the result of the previous stage.
+     * 
+     * @param name
+     *            the name of the stage.
+     * @param stage
+     *            the function returning the future of the stage.
+     * @return the pipeline.
+     */
+    @SuppressWarnings("unchecked")
+    public <N> Pipeline<N> then(
+            String                                              name,
+            Function<? super R, ? extends CompletableFuture<N>> stage) {
+        return new Pipeline<N>(this, name, input->stage.apply((R)input), null, this.stageTimeReporter);
+    }
+    
+    /**
+     * Set the fallback of the last stage. The fallback is given the failure of that stage (only) and its value is
+     *   passed on to the next stage.
+     * 
+     * @param fallback
+     *            the fallback.
+     * @return the pipeline.
+     */
+    public Pipeline<R> orElse(
+            Function<? super Throwable, ? extends R> fallback) {
+        return new Pipeline<R>(this.previous, this.name, this.stage, fallback, this.stageTimeReporter);
+    }
+    
+    /**
+     * Set the reporter of the time (in millisecond) each stage takes, including the stages that fail.
+     * 
+     * @param stageTimeReporter
+     *            the reporter given the stage name and its time.
+     * @return the pipeline.
+     */
+    public Pipeline<R> reportStageTime(
+            BiConsumer<String, Long> stageTimeReporter) {
+        return new Pipeline<R>(this.previous, this.name, this.stage, this.fallback, stageTimeReporter);
+    }
+    
+    /**
+     * Start the pipeline.
+     * 
+     * @return the run.
+     */
+    @SuppressWarnings("unchecked")
+    Run<R> run() {
+        Run<R> run = new Run<>();
+        run.result = (CompletableFuture<R>)compose(run, this.stageTimeReporter);
+        return run;
+    }
+    
+    private CompletableFuture<Object> compose(
+            Run<?>                   run,
+            BiConsumer<String, Long> reporter) {
+        if (this.previous == null) {
+            return runStage(run, reporter, null);
+        }
+        return this.previous
+                .compose(run, reporter)
+                .thenCompose(value->runStage(run, reporter, value));
+    }
+    
+    private CompletableFuture<Object> runStage(
+            Run<?>                   run,
+            BiConsumer<String, Long> reporter,
+            Object                   input) {
+        if (run.stopped) {
+            return failed(new CancellationException("The pipeline is stopped before the stage: " + this.name));
+        }
+        
+        long start = System.nanoTime();
+        CompletableFuture<?> future;
+        try {
+            future = this.stage.apply(input);
+            if (future == null) {
+                future = failed(new NullPointerException("The stage returns null future: " + this.name));
+            }
+        } catch (RuntimeException exception) {
+            future = failed(exception);
+        }
+        run.current = future;
+        
+        return future.handle((value, exception)->{
+            if (reporter != null) {
+                reporter.accept(this.name, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            }
+            if (exception == null) {
+                return CompletableFuture.<Object>completedFuture(value);
+            }
+            if ((this.fallback == null) || run.stopped) {
+                return Pipeline.<Object>failed(exception);
+            }
+            Throwable cause = ((exception instanceof CompletionException) && (exception.getCause() != null))
+                            ? exception.getCause()
+                            : exception;
+            return CompletableFuture.<Object>completedFuture(this.fallback.apply(cause));
+        }).thenCompose(Function.identity());
+    }
+    
+    private static <T> CompletableFuture<T> failed(
+            Throwable exception) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(exception);
+        return future;
+    }
+    
+    // == AUX class ====================================================================================================
+    
+    /**
+     * One run of the pipeline.
+     */
+    static final class Run<R> {
+        
+        private CompletableFuture<R> result;
+        
+        private volatile CompletableFuture<?> current = null;
+        
+        private volatile boolean stopped = false;
+        
+        /**
+         * Returns the future of the final stage.
+         * 
+         * @return the future of the result.
+         */
+        CompletableFuture<R> result() {
+            return result;
+        }
+        
+        /**
+         * Stop the run - the running stage is cancelled and no further stage is started.
+         */
+        void stop() {
+            if (result.isDone()) {
+                return;
+            }
+            stopped = true;
+            CompletableFuture<?> running = current;
+            if ((running != null) && !running.isDone()) {
+                running.cancel(true);
+            }
+        }
+        
+    }
+    
+}
@@ -0,0 +1,338 @@
+package nawaman.papercuts.concurrent.asynctosync;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.UnaryOperator;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The registry of the named {@link AsyncToSync} policies whose settings (see {@link PolicySettings}) can be read and
+ *   changed live -- for example, to raise a timeout during a latency incident without redeploying.
+ * 
+ * The changes are published to the policies as new immutable snapshots through a volatile field so the invocations
+ *   never take a lock; an invocation in progress keeps the settings it started with.
+ * Until changed through this registry, a policy reads its own settings live; once changed, a later call of a builder
+ *   method of the policy (for example {@link AsyncToSync#maxConcurrent(int)}) still takes effect -- the latest change
+ *   wins either way.
+ * When created with an {@link MBeanServer} (see {@link #platform()}), each registered policy is exposed as a
+ *   {@link PolicyMXBean} named {@code nawaman.papercuts.asynctosync:type=Policy,name=<policy name>}.
+ * 
+ * @author NawaMan
+ */
+public class PolicyRegistry {
+    
+    /** The JMX domain of the policies. */
+    public static final String JMX_DOMAIN = "nawaman.papercuts.asynctosync";
+    
+    private final ConcurrentHashMap<String, AsyncToSync<?>> policies = new ConcurrentHashMap<>();
+    
+    private final MBeanServer mbeanServer;
+    
+    /**
+     * Constructs a registry not exposed over JMX.
+     */
+    public PolicyRegistry() {
+        this(null);
+    }
+    
+    /**
+     * Constructs a registry exposed with the given MBean server.
+     * 
+     * @param mbeanServer
+     *            the MBean server (or {@code null} to not expose over JMX).
+     */
+    public PolicyRegistry(
+            MBeanServer mbeanServer) {
+        this.mbeanServer = mbeanServer;
+    }
+    
+    /**
+     * Returns the registry exposed with the platform MBean server.
+     * 
+     * @return the registry.
+     */
+    public static PolicyRegistry platform() {
+        return Platform.INSTANCE;
+    }
+    
+    /**
+     * Register the named policy. From now on, the settings of the policy can be changed through this registry.
+     * 
+     * @param policy
+     *            the policy (see {@link AsyncToSync#named(String)}).
+     * @return the policy.
+     */
+    public <T> AsyncToSync<T> register(
+            AsyncToSync<T> policy) {
+        String name = policy.getName();
+        if (name == null) {
+            throw new IllegalArgumentException("The policy must be named to be registered.");
+        }
+        if (policies.putIfAbsent(name, policy) != null) {
+            throw new IllegalStateException("The policy is already registered: " + name);
+        }
+        
+        if (mbeanServer != null) {
+            try {
+                mbeanServer.registerMBean(new PolicyControl(name), objectName(name));
+            } catch (JMException exception) {
+                policies.remove(name);
+                throw new IllegalStateException("Unable to expose the policy over JMX: " + name, exception);
+            }
+        }
+        return policy;
+    }
+    
+    /**
+     * Unregister the policy. The policy goes back to the settings it is built with.
+     * 
+     * @param name
+     *            the name of the policy.
+     */
+    public void unregister(
+            String name) {
+        AsyncToSync<?> policy = policies.remove(name);
+        if (policy == null) {
+            return;
+        }
+        policy.tune(null);
+        if (mbeanServer != null) {
+            try {
+                mbeanServer.unregisterMBean(objectName(name));
+            } catch (JMException exception) {
+                // The MBean is gone already.
+            }
+        }
+    }
+    
+    /**
+     * Returns the names of the registered policies.
+     * 
+     * @return the names.
+     */
+    public Set<String> getNames() {
+        return Collections.unmodifiableSet(new TreeSet<>(policies.keySet()));
+    }
+    
+    /**
+     * Returns the policy of the given name or {@code null} if there is none.
+     * 
+     * @param name
+     *            the name of the policy.
+     * @return the policy.
+     */
+    public AsyncToSync<?> get(
+            String name) {
+        return policies.get(name);
+    }
+    
+    /**
+     * Returns the settings of the policy.
+     * 
+     * @param name
+     *            the name of the policy.
+     * @return the settings.
+     */
+    public PolicySettings getSettings(
+            String name) {
+        return policy(name).getSettings();
+    }
+    
+    /**
+     * Change the settings of the policy. The coming invocations use the changed settings.
+     * 
+     * @param name
+     *            the name of the policy.
+     * @param change
+     *            the change from the current settings.
+     * @return the changed settings.
+     */
+    public PolicySettings update(
+            String                        name,
+            UnaryOperator<PolicySettings> change) {
+        AsyncToSync<?> policy = policy(name);
+        // Writers are rare, so they are serialized per policy; the readers never lock.
+        synchronized (policy) {
+            PolicySettings settings = change.apply(policy.getSettings());
+            policy.tune(settings);
+            return settings;
+        }
+    }
+    
+    /**
+     * Set the settings of the policy back to the settings it is built with.
+     * 
+     * @param name
+     *            the name of the policy.
+     * @return the settings.
+     */
+    public PolicySettings reset(
+            String name) {
+        AsyncToSync<?> policy = policy(name);
+        synchronized (policy) {
+            policy.tune(null);
+            return policy.getSettings();
+        }
+    }
+    
+    private AsyncToSync<?> policy(
+            String name) {
+        AsyncToSync<?> policy = policies.get(name);
+        if (policy == null) {
+            throw new IllegalArgumentException("No such policy: " + name);
+        }
+        return policy;
+    }
+    
+    private static ObjectName objectName(
+            String name)
+                    throws JMException {
+        return new ObjectName(JMX_DOMAIN + ":type=Policy,name=" + ObjectName.quote(name));
+    }
+    
+    // == AUX class ====================================================================================================
+    
+    /**
+     * The management interface of a registered policy.
+     */
+    public static interface PolicyMXBean {
+        
+        /** @return the name of the policy. */
+        public String getName();
+        
+        /** @return the timeout in millisecond or -1 for no timeout. */
+        public long getTimeoutMillis();
+        
+        /** @param timeoutMillis the timeout in millisecond or negative for no timeout. */
+        public void setTimeoutMillis(long timeoutMillis);
+        
+        /** @return the maximum number of concurrent invocations or 0 for no limit. */
+        public int getMaxConcurrent();
+        
+        /** @param maxConcurrent the maximum number of concurrent invocations or 0 for no limit. */
+        public void setMaxConcurrent(int maxConcurrent);
+        
+        /** @return true if the hedging is enabled. */
+        public boolean isHedgingEnabled();
+        
+        /** @param enabled true to enable the hedging. */
+        public void setHedgingEnabled(boolean enabled);
+        
+        /** @return true if the last known good values are used. */
+        public boolean isLastKnownGoodEnabled();
+        
+        /** @param enabled true to use the last known good values. */
+        public void setLastKnownGoodEnabled(boolean enabled);
+        
+        /** @return true if the faults are injected. */
+        public boolean isFaultInjectionEnabled();
+        
+        /** @param enabled true to inject the faults. */
+        public void setFaultInjectionEnabled(boolean enabled);
+        
+        /** @return the number of the invocations in flight (only counted with a concurrency limit). */
+        public int getInFlight();
+        
+        /** @return the number of the invocations rejected by the concurrency limit. */
+        public long getRejectedCount();
+        
+        /** Set the settings back to the settings the policy is built with. */
+        public void reset();
+        
+    }
+    
+    private final class PolicyControl implements PolicyMXBean {
+        
+        private final String name;
+        
+        PolicyControl(
+                String name) {
+            this.name = name;
+        }
+        
+        @Override
+        public String getName() {
+            return name;
+        }
+        
+        @Override
+        public long getTimeoutMillis() {
+            Long waitTime = getSettings(name).getWaitTime();
+            return (waitTime != null) ? waitTime : -1;
+        }
+        
+        @Override
+        public void setTimeoutMillis(long timeoutMillis) {
+            update(name, settings->settings.withWaitTime((timeoutMillis >= 0) ? timeoutMillis : null));
+        }
+        
+        @Override
+        public int getMaxConcurrent() {
+            return getSettings(name).getMaxConcurrent();
+        }
+        
+        @Override
+        public void setMaxConcurrent(int maxConcurrent) {
+            update(name, settings->settings.withMaxConcurrent(maxConcurrent));
+        }
+        
+        @Override
+        public boolean isHedgingEnabled() {
+            return getSettings(name).isHedgingEnabled();
+        }
+        
+        @Override
+        public void setHedgingEnabled(boolean enabled) {
+            update(name, settings->settings.withHedgingEnabled(enabled));
+        }
+        
+        @Override
+        public boolean isLastKnownGoodEnabled() {
+            return getSettings(name).isLastKnownGoodEnabled();
+        }
+        
+        @Override
+        public void setLastKnownGoodEnabled(boolean enabled) {
+            update(name, settings->settings.withLastKnownGoodEnabled(enabled));
+        }
+        
+        @Override
+        public boolean isFaultInjectionEnabled() {
+            return getSettings(name).isFaultInjectionEnabled();
+        }
+        
+        @Override
+        public void setFaultInjectionEnabled(boolean enabled) {
+            update(name, settings->settings.withFaultInjectionEnabled(enabled));
+        }
+        
+        @Override
+        public int getInFlight() {
+            return policy(name).getInFlight();
+        }
+        
+        @Override
+        public long getRejectedCount() {
+            return policy(name).getRejectedCount();
+        }
+        
+        @Override
+        public void reset() {
+            PolicyRegistry.this.reset(name);
+        }
+        
+    }
+    
+    private static final class Platform {
+        
+        static final PolicyRegistry INSTANCE = new PolicyRegistry(ManagementFactory.getPlatformMBeanServer());
+        
+    }
+    
+}
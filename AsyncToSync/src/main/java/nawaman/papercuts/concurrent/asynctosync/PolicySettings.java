@@ -0,0 +1,154 @@
+package nawaman.papercuts.concurrent.asynctosync;
+
+/**
+ * The immutable snapshot of the tunable settings of an {@link AsyncToSync} (see {@link PolicyRegistry}).
+ * 
+ * A new snapshot replaces the old one as a whole (through a volatile field) so each invocation sees a consistent set
+ *   of settings without any lock. The toggles only switch the features configured on the AsyncToSync on and off.
+ * 
+ * @author NawaMan
+ */
+public final class PolicySettings {
+    
+    private final Long waitTime;
+    
+    private final int maxConcurrent;
+    
+    private final boolean hedgingEnabled;
+    
+    private final boolean lastKnownGoodEnabled;
+    
+    private final boolean faultInjectionEnabled;
+    
+    PolicySettings(
+            Long    waitTime,
+            int     maxConcurrent,
+            boolean hedgingEnabled,
+            boolean lastKnownGoodEnabled,
+            boolean faultInjectionEnabled) {
+        if (maxConcurrent < 0) {
+            throw new IllegalArgumentException("Maximum concurrent invocations must not be negative: " + maxConcurrent);
+        }
+        this.waitTime              = waitTime;
+        this.maxConcurrent         = maxConcurrent;
+        this.hedgingEnabled        = hedgingEnabled;
+        this.lastKnownGoodEnabled  = lastKnownGoodEnabled;
+        this.faultInjectionEnabled = faultInjectionEnabled;
+    }
+    
+    /**
+     * Returns the wait time in millisecond or {@code null} for no timeout.
+     * 
+     * @return the wait time.
+     */
+    public Long getWaitTime() {
+        return waitTime;
+    }
+    
+    /**
+     * Returns the maximum number of concurrent invocations or 0 for no limit.
+     * 
+     * @return the maximum number of concurrent invocations.
+     */
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+    
+    /**
+     * Returns true if the hedging is enabled.
+     * 
+     * @return true if the hedging is enabled.
+     */
+    public boolean isHedgingEnabled() {
+        return hedgingEnabled;
+    }
+    
+    /**
+     * Returns true if the last known good values are used.
+     * 
+     * @return true if the last known good values are used.
+     */
+    public boolean isLastKnownGoodEnabled() {
+        return lastKnownGoodEnabled;
+    }
+    
+    /**
+     * Returns true if the faults are injected.
+     * 
+     * @return true if the faults are injected.
+     */
+    public boolean isFaultInjectionEnabled() {
+        return faultInjectionEnabled;
+    }
+    
+    /**
+     * Returns the settings with the given wait time.
+     * 
+     * @param waitTime
+     *            the wait time in millisecond or {@code null} for no timeout.
+     * @return the settings.
+     */
+    public PolicySettings withWaitTime(
+            Long waitTime) {
+        return new PolicySettings(waitTime, maxConcurrent, hedgingEnabled, lastKnownGoodEnabled, faultInjectionEnabled);
+    }
+    
+    /**
+     * Returns the settings with the given maximum number of concurrent invocations.
+     * 
+     * @param maxConcurrent
+     *            the maximum number of concurrent invocations or 0 for no limit.
+     * @return the settings.
+     */
+    public PolicySettings withMaxConcurrent(
+            int maxConcurrent) {
+        return new PolicySettings(waitTime, maxConcurrent, hedgingEnabled, lastKnownGoodEnabled, faultInjectionEnabled);
+    }
+    
+    /**
+     * Returns the settings with the hedging enabled or disabled.
+     * 
+     * @param hedgingEnabled
+     *            true to enable the hedging.
+     * @return the settings.
+     */
+    public PolicySettings withHedgingEnabled(
+            boolean hedgingEnabled) {
+        return new PolicySettings(waitTime, maxConcurrent, hedgingEnabled, lastKnownGoodEnabled, faultInjectionEnabled);
+    }
+    
+    /**
+     * Returns the settings with the last known good values enabled or disabled.
+     * 
+     * @param lastKnownGoodEnabled
+     *            true to use the last known good values.
+     * @return the settings.
+     */
+    public PolicySettings withLastKnownGoodEnabled(
+            boolean lastKnownGoodEnabled) {
+        return new PolicySettings(waitTime, maxConcurrent, hedgingEnabled, lastKnownGoodEnabled, faultInjectionEnabled);
+    }
+    
+    /**
+     * Returns the settings with the fault injection enabled or disabled.
+     * 
+     * @param faultInjectionEnabled
+     *            true to inject the faults.
+     * @return the settings.
+     */
+    public PolicySettings withFaultInjectionEnabled(
+            boolean faultInjectionEnabled) {
+        return new PolicySettings(waitTime, maxConcurrent, hedgingEnabled, lastKnownGoodEnabled, faultInjectionEnabled);
+    }
+    
+    @Override
+    public String toString() {
+        return "PolicySettings["
+                + "waitTime="              + waitTime              + ", "
+                + "maxConcurrent="         + maxConcurrent         + ", "
+                + "hedgingEnabled="        + hedgingEnabled        + ", "
+                + "lastKnownGoodEnabled="  + lastKnownGoodEnabled  + ", "
+                + "faultInjectionEnabled=" + faultInjectionEnabled + "]";
+    }
+    
+}
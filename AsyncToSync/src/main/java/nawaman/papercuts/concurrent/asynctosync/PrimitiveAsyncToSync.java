@@ -0,0 +1,236 @@
+package nawaman.papercuts.concurrent.asynctosync;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The base of the primitive-specialized AsyncToSync ({@link AsyncToInt}, {@link AsyncToLong} and
+ *   {@link AsyncToDouble}) -- the handlers, the waiting and the choice of the handler for the outcome.
+ * 
+ * The outcome of a wait is the value of the future (boxed by the asynchronous operation), {@link #TIMEOUT} or the
+ *   runtime exception. This class decides which handler the outcome goes to (see {@link #handlingOf(Object)}) so the
+ *   subclasses only call their primitive handler (of the type {@code P} for the suppliers and {@code F} for the
+ *   exception function) and no default value is ever boxed.
+ * 
+ * @author NawaMan
+ */
+abstract class PrimitiveAsyncToSync<S extends PrimitiveAsyncToSync<S, P, F>, P, F> {
+    
+    /** The outcome of the waits that time out. */
+    static final Object TIMEOUT = new Object();
+    
+    /** The handlings of the outcomes. */
+    static enum Handling {
+        /** The value of the future. */
+        VALUE,
+        /** The default value. */
+        OR_ELSE,
+        /** The {@code onTimeout} handler. */
+        ON_TIMEOUT,
+        /** The {@code onException} handler. */
+        ON_EXCEPTION,
+        /** The {@code onCancelled} handler. */
+        ON_CANCELLED,
+        /** The {@code onInterrupted} handler. */
+        ON_INTERRUPTED
+    }
+    
+    Long waitTime = null;
+    
+    boolean hasOrElse = false;
+    
+    P onTimeout = null;
+    
+    F onException = null;
+    
+    P onCancelled = null;
+    
+    P onInterrupted = null;
+    
+    private boolean stackless = false;
+    
+    abstract S self();
+    
+    /**
+     * Set the timeout after the given wait time in millisecond. The invocation will returns the default value.
+     * 
+     * @param waitTime
+     *            the wait time.
+     * @return this AsyncToSync.
+     */
+    public S onTimeout(
+            long waitTime) {
+        this.waitTime  = waitTime;
+        this.onTimeout = null;
+        return self();
+    }
+    
+    /**
+     * Set the timeout after the given wait time in millisecond and the value to return.
+     * 
+     * @param waitTime
+     *            the wait time.
+     * @param onTimeout
+     *            the supplier of the result.
+     * @return this AsyncToSync.
+     */
+    public S onTimeout(
+            long waitTime,
+            P    onTimeout) {
+        this.waitTime  = waitTime;
+        this.onTimeout = onTimeout;
+        return self();
+    }
+    
+    /**
+     * Specify what to do in case of runtime exception (including cancellation and interruption).
+     * 
+     * @param onException
+     *            the function of runtime exception to the result.
+     * @return this AsyncToSync.
+     */
+    public S onException(
+            F onException) {
+        this.onException = onException;
+        return self();
+    }
+    
+    /**
+     * Specify what to do in case of cancellation.
+     * 
+     * @param onCancelled
+     *            the supplier of the result.
+     * @return this AsyncToSync.
+     */
+    public S onCancelled(
+            P onCancelled) {
+        this.onCancelled = onCancelled;
+        return self();
+    }
+    
+    /**
+     * Specify what to do in case the asynchronous work is interrupted (the future fails with an interrupted cause).
+     * The interruption of the waiting thread itself is thrown.
+     * 
+     * @param onInterrupted
+     *            the supplier of the result.
+     * @return this AsyncToSync.
+     */
+    public S onInterrupted(
+            P onInterrupted) {
+        this.onInterrupted = onInterrupted;
+        return self();
+    }
+    
+    /**
+     * Make the exceptions created by this AsyncToSync stackless (see {@link AsyncToSync#stackless()}).
+     * 
+     * @return this AsyncToSync.
+     */
+    public S stackless() {
+        this.stackless = true;
+        return self();
+    }
+    
+    /**
+     * Returns the deadline (in {@link System#nanoTime()}) of the waits starting now.
+     * 
+     * @return the deadline.
+     */
+    long deadline() {
+        return (this.waitTime != null) ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.waitTime) : 0;
+    }
+    
+    /**
+     * Wait for the future until the deadline.
+     * 
+     * @param future
+     *            the future.
+     * @param deadline
+     *            the deadline from {@link #deadline()}.
+     * @return the outcome -- the value, {@link #TIMEOUT} or the runtime exception.
+     * @throws InterruptedException
+     *            when the current thread is interrupted.
+     */
+    Object await(
+            Future<?> future,
+            long      deadline)
+                    throws InterruptedException {
+        if (future == null) {
+            return null;
+        }
+        try {
+            if (this.waitTime == null) {
+                return future.get();
+            }
+            long remaining = Math.max(0, deadline - System.nanoTime());
+            return future.get(remaining, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException exception) {
+            return TIMEOUT;
+        } catch (ExecutionException exception) {
+            return prepareRuntimeException(exception.getCause());
+        } catch (CancellationException exception) {
+            return exception;
+        }
+    }
+    
+    /**
+     * Returns the handling of the outcome following the rules of {@link AsyncToSync}: {@code onException} handles all
+     *   the failures; without it a cancellation goes to {@code onCancelled} and an interruption to
+     *   {@code onInterrupted} and then, like other failures, to {@code orElse} if specified or is thrown.
+     * 
+     * @param outcome
+     *            the outcome from {@link #await(Future, long)}.
+     * @return the handling -- the handler it names is set.
+     * @throws InterruptedException
+     *            when the asynchronous work is interrupted and there is no handler for it.
+     */
+    Handling handlingOf(
+            Object outcome)
+                    throws InterruptedException {
+        if (outcome == null) {
+            return Handling.OR_ELSE;
+        }
+        if (outcome == TIMEOUT) {
+            return (this.onTimeout != null) ? Handling.ON_TIMEOUT : Handling.OR_ELSE;
+        }
+        if (!(outcome instanceof RuntimeException)) {
+            return Handling.VALUE;
+        }
+        
+        RuntimeException rte = (RuntimeException)outcome;
+        if (this.onException != null) {
+            return Handling.ON_EXCEPTION;
+        }
+        if ((rte instanceof CancellationException) && (this.onCancelled != null)) {
+            return Handling.ON_CANCELLED;
+        }
+        boolean isInterrupted = (rte.getCause() instanceof InterruptedException);
+        if (isInterrupted && (this.onInterrupted != null)) {
+            return Handling.ON_INTERRUPTED;
+        }
+        if (this.hasOrElse) {
+            return Handling.OR_ELSE;
+        }
+        if (isInterrupted) {
+            throw (InterruptedException)rte.getCause();
+        }
+        throw rte;
+    }
+    
+    private RuntimeException prepareRuntimeException(
+            Throwable exception) {
+        while ((exception instanceof CompletionException) && (exception.getCause() != null)) {
+            exception = exception.getCause();
+        }
+        if (exception instanceof RuntimeException) {
+            return (RuntimeException)exception;
+        }
+        return new AsyncToSyncException(exception, !this.stackless);
+    }
+    
+}
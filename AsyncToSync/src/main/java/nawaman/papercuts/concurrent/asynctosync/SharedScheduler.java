@@ -0,0 +1,50 @@
+package nawaman.papercuts.concurrent.asynctosync;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The scheduler shared by all {@link AsyncToSync} for the short timed tasks such as periodic parallely ticks.
+ * 
+ * The scheduler uses only a handful of daemon threads so tasks run on it must be short and must not block.
+ * 
+ * @author NawaMan
+ */
+final class SharedScheduler {
+    
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    
+    private SharedScheduler() {
+    }
+    
+    /**
+     * Returns the shared scheduler.
+     * 
+     * @return the shared scheduler.
+     */
+    static ScheduledExecutorService instance() {
+        return Holder.INSTANCE;
+    }
+    
+    private static ScheduledThreadPoolExecutor newScheduler() {
+        int poolSize = Math.max(1, Runtime.getRuntime().availableProcessors() / 4);
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(poolSize, runnable->{
+            Thread thread = new Thread(runnable, "AsyncToSync-scheduler-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Ticks are cancelled all the time, so do not let them pile up in the queue.
+        scheduler.setRemoveOnCancelPolicy(true);
+        return scheduler;
+    }
+    
+    // == AUX class ====================================================================================================
+    
+    private static final class Holder {
+        
+        static final ScheduledThreadPoolExecutor INSTANCE = newScheduler();
+        
+    }
+    
+}
@@ -0,0 +1,229 @@
+package nawaman.papercuts.concurrent.asynctosync;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * The measurement of an {@link AsyncToSync} used to size the executors and the caller threads from data.
+ * 
+ * For each invocation, the time the caller waits and the time the asynchronous work takes (from its submission to its
+ *   completion, even if no one waits for it anymore) are recorded. By Little's law, the number of the things in a
+ *   system is the throughput times the time each stays in it, so:
+ * <ul>
+ *   <li>the pool running the work needs about {@code completion rate x service time} threads, and</li>
+ *   <li>about {@code invocation rate x wait time} caller threads are parked at any moment.</li>
+ * </ul>
+ * The submission is known when the work is started by the invocation (the supplier or the callback-style call) or is
+ *   a {@link CompletableFutureTask}; otherwise the service time is counted from the invocation and is a lower bound.
+ * 
+ * The estimates are over a sliding window of the last {@value #WINDOW_SECONDS} seconds (or since the last
+ *   {@link #reset()} if more recent) so they follow the current load. Recording is lock-free.
+ * 
+ * @author NawaMan
+ */
+public final class SizingAdvisor {
+    
+    /** The number of seconds in the sliding window. */
+    public static final int WINDOW_SECONDS = 10;
+    
+    private static final long BUCKET_NANOS = TimeUnit.SECONDS.toNanos(1);
+    
+    private final Bucket[] buckets = new Bucket[WINDOW_SECONDS];
+    
+    private volatile long startNanos = System.nanoTime();
+    
+    SizingAdvisor() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new Bucket();
+        }
+    }
+    
+    void recordWait(
+            long nanos) {
+        Bucket bucket = current();
+        bucket.invocations.increment();
+        bucket.waitNanos.add(nanos);
+    }
+    
+    void recordService(
+            long nanos) {
+        Bucket bucket = current();
+        bucket.completions.increment();
+        bucket.serviceNanos.add(nanos);
+    }
+    
+    private Bucket current() {
+        long   second = (System.nanoTime() - startNanos) / BUCKET_NANOS;
+        Bucket bucket = buckets[(int)(second % buckets.length)];
+        if (bucket.second != second) {
+            bucket.rollTo(second);
+        }
+        return bucket;
+    }
+    
+    /**
+     * Start a new measuring period.
+     */
+    public synchronized void reset() {
+        for (Bucket bucket : buckets) {
+            bucket.rollTo(-1);
+        }
+        startNanos = System.nanoTime();
+    }
+    
+    /**
+     * Returns the number of invocations per second.
+     * 
+     * @return the throughput.
+     */
+    public double getThroughput() {
+        return rate(Bucket::invocations);
+    }
+    
+    /**
+     * Returns the number of completions of the asynchronous work per second.
+     * 
+     * @return the completion rate.
+     */
+    public double getCompletionRate() {
+        return rate(Bucket::completions);
+    }
+    
+    /**
+     * Returns the average time (in millisecond) the callers wait.
+     * 
+     * @return the average wait time.
+     */
+    public double getAverageWaitMillis() {
+        return averageMillis(sum(Bucket::waitNanos), sum(Bucket::invocations));
+    }
+    
+    /**
+     * Returns the average time (in millisecond) the asynchronous work takes.
+     * 
+     * @return the average service time.
+     */
+    public double getAverageServiceMillis() {
+        return averageMillis(sum(Bucket::serviceNanos), sum(Bucket::completions));
+    }
+    
+    /**
+     * Returns the estimated number of threads needed to run the asynchronous work at the current completion rate.
+     * This applies to the executor when the work keeps its thread busy until it completes.
+     * 
+     * @return the estimated pool size.
+     */
+    public int getEstimatedPoolSize() {
+        return estimate(getCompletionRate(), getAverageServiceMillis());
+    }
+    
+    /**
+     * Returns the estimated number of caller threads parked at any moment at the current throughput.
+     * 
+     * @return the estimated number of caller threads.
+     */
+    public int getEstimatedCallerThreads() {
+        return estimate(getThroughput(), getAverageWaitMillis());
+    }
+    
+    private double rate(
+            Function<Bucket, LongAdder> counter) {
+        long now     = System.nanoTime() - startNanos;
+        long second  = now / BUCKET_NANOS;
+        long from    = Math.max(0, second - buckets.length + 1) * BUCKET_NANOS;
+        long elapsed = now - from;
+        if (elapsed <= 0) {
+            return 0;
+        }
+        return sum(counter) * 1e9 / elapsed;
+    }
+    
+    private long sum(
+            Function<Bucket, LongAdder> counter) {
+        long second = (System.nanoTime() - startNanos) / BUCKET_NANOS;
+        long total  = 0;
+        for (Bucket bucket : buckets) {
+            long age = second - bucket.second;
+            if ((age >= 0) && (age < buckets.length)) {
+                total += counter.apply(bucket).sum();
+            }
+        }
+        return total;
+    }
+    
+    private static int estimate(
+            double rate,
+            double millis) {
+        double inSystem = rate * millis / 1000;
+        return (int)Math.min(Integer.MAX_VALUE, Math.ceil(inSystem));
+    }
+    
+    private static double averageMillis(
+            long nanos,
+            long count) {
+        return (count == 0) ? 0 : ((double)nanos / count / TimeUnit.MILLISECONDS.toNanos(1));
+    }
+    
+    @Override
+    public String toString() {
+        return String.format(
+                "SizingAdvisor[throughput=%.1f/s, wait=%.2fms, service=%.2fms, poolSize=%d, callerThreads=%d]",
+                getThroughput(),
+                getAverageWaitMillis(),
+                getAverageServiceMillis(),
+                getEstimatedPoolSize(),
+                getEstimatedCallerThreads());
+    }
+    
+    // == AUX class ====================================================================================================
+    
+    /**
+     * The counters of one second of the window.
+     */
+    private static final class Bucket {
+        
+        private volatile long second = -1;
+        
+        private final LongAdder invocations = new LongAdder();
+        
+        private final LongAdder waitNanos = new LongAdder();
+        
+        private final LongAdder completions = new LongAdder();
+        
+        private final LongAdder serviceNanos = new LongAdder();
+        
+        LongAdder invocations() {
+            return invocations;
+        }
+        
+        LongAdder waitNanos() {
+            return waitNanos;
+        }
+        
+        LongAdder completions() {
+            return completions;
+        }
+        
+        LongAdder serviceNanos() {
+            return serviceNanos;
+        }
+        
+        /**
+         * Start counting the given second -- a record racing with the roll may land in either second.
+         */
+        synchronized void rollTo(
+                long newSecond) {
+            if (second == newSecond) {
+                return;
+            }
+            invocations.reset();
+            waitNanos.reset();
+            completions.reset();
+            serviceNanos.reset();
+            second = newSecond;
+        }
+        
+    }
+    
+}
@@ -0,0 +1,74 @@
+package nawaman.papercuts.concurrent.asynctosync;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Stackless signal exceptions -- the timeout signal used by all {@link AsyncToSync} to let the internal futures know
+ *   no one is waiting anymore and the cancellations made by a {@link AsyncToSync#stackless() stackless} AsyncToSync.
+ * 
+ * The timeout signal is never thrown to the callers, so it is preallocated and shared JVM-wide -- it has no stack
+ *   trace and its cause cannot be set. The JDK signal types do not expose the constructor disabling the suppression,
+ *   so no suppressed exception must be added to it. The cancellation may be thrown to the callers (and to the holders
+ *   of the cancelled futures) who may add to it, so a new one (cheap without the stack trace) is made each time.
+ * 
+ * @author NawaMan
+ */
+final class StacklessSignals {
+    
+    /** The timeout signal. */
+    static final TimeoutException TIMEOUT = new StacklessTimeoutException();
+    
+    private StacklessSignals() {
+    }
+    
+    /**
+     * Returns a new cancellation without stack trace.
+     * 
+     * @return the cancellation.
+     */
+    static CancellationException cancelled() {
+        return new StacklessCancellationException();
+    }
+    
+    // == AUX class ====================================================================================================
+    
+    static final class StacklessCancellationException extends CancellationException {
+        
+        private static final long serialVersionUID = -2086415637297862391L;
+        
+        StacklessCancellationException() {
+            super("Cancelled by AsyncToSync.");
+        }
+        
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+        
+    }
+    
+    static final class StacklessTimeoutException extends TimeoutException {
+        
+        private static final long serialVersionUID = 4401813367902540576L;
+        
+        StacklessTimeoutException() {
+            super("Timeout by AsyncToSync.");
+            // No cause -- which also makes it impossible to set one later.
+            initCause(null);
+        }
+        
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+        
+        @Override
+        public void setStackTrace(
+                StackTraceElement[] stackTrace) {
+            // Shared, so stays stackless.
+        }
+        
+    }
+    
+}
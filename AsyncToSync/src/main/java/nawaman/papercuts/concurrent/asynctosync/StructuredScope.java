@@ -0,0 +1,492 @@
+package nawaman.papercuts.concurrent.asynctosync;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * A structured fork/join scope built on {@link AsyncToSync} -- similar to {@code StructuredTaskScope} but usable with
+ *   Java 8 and the handlers of the AsyncToSync.
+ * 
+ * Subtasks are forked into the scope and joined once with the {@code onTimeout} of the AsyncToSync as the deadline.
+ * Depending on the mode, the scope is shut down as soon as one subtask fails ({@link ShutdownOnFailure}) or succeeds
+ *   ({@link ShutdownOnSuccess}); shutting down cancels (and interrupts) all the unfinished subtasks right away.
+ * If the joining thread is interrupted, the scope is shut down and the interruption is propagated.
+ * Closing the scope shuts it down.
+ * The {@link #getCancellationToken() cancellation token} of the scope is tripped when the scope is shut down, the
+ *   deadline is passed or the joining thread is interrupted so the subtasks can stop cooperatively.
+ * Joining from a non-blocking thread does not wait if the AsyncToSync has the handler for it (see
+ *   {@link AsyncToSync#onNonBlockingThread(Function)}) -- the handler is given the futures instead.
+ * 
+ * @author NawaMan
+ */
+public abstract class StructuredScope<T> implements AutoCloseable {
+    
+    final AsyncToSync<T> policy;
+    
+    private final Executor executor;
+    
+    private final List<CompletableFuture<T>> forks = new ArrayList<>();
+    
+    private final List<Outcome<T>> outcomes = new ArrayList<>();
+    
+    private int completed = 0;
+    
+    private final BitSet timedOut = new BitSet();
+    
+    private boolean joined = false;
+    
+    private volatile boolean shutdown = false;
+    
+    private final CancellationToken token = new CancellationToken();
+    
+    StructuredScope(
+            AsyncToSync<T> policy,
+            Executor       executor) {
+        this.policy   = policy;
+        this.executor = executor;
+    }
+    
+    /**
+     * Fork the task to be run by the executor of the AsyncToSync.
+     * The task will be interrupted if the scope is shut down while running.
+     * 
+     * @param task
+     *            the task.
+     * @return the future of the subtask.
+     */
+    public CompletableFuture<T> fork(
+            Supplier<? extends T> task) {
+        CompletableFutureTask<T> futureTask = new CompletableFutureTask<>(task::get);
+        CompletableFuture<T>     fork       = futureTask.toCompletableFuture();
+        if (add(fork)) {
+            executor.execute(futureTask);
+        }
+        return fork;
+    }
+    
+    /**
+     * Fork the asynchronous subtask.
+     * 
+     * @param supplier
+     *            the supplier of the future of the subtask.
+     * @return the future of the subtask.
+     */
+    public CompletableFuture<T> forkAsync(
+            Supplier<? extends CompletableFuture<T>> supplier) {
+        CompletableFuture<T> fork;
+        try {
+            fork = supplier.get();
+        } catch (RuntimeException exception) {
+            fork = new CompletableFuture<>();
+            fork.completeExceptionally(exception);
+        }
+        if (fork == null) {
+            fork = new CompletableFuture<>();
+            fork.completeExceptionally(new NullPointerException("The supplier returns null future."));
+        }
+        add(fork);
+        return fork;
+    }
+    
+    /**
+     * Fork the asynchronous subtask given the cancellation token of the scope.
+     * 
+     * @param call
+     *            the call returning the future of the subtask.
+     * @return the future of the subtask.
+     */
+    public CompletableFuture<T> forkCancellable(
+            Function<? super CancellationToken, ? extends CompletableFuture<T>> call) {
+        return forkAsync(()->call.apply(token));
+    }
+    
+    /**
+     * Returns the cancellation token of the scope.
+     * 
+     * @return the cancellation token.
+     */
+    public CancellationToken getCancellationToken() {
+        return token;
+    }
+    
+    private boolean add(
+            CompletableFuture<T> fork) {
+        int index;
+        synchronized (this) {
+            if (joined) {
+                throw new IllegalStateException("The scope is already joined.");
+            }
+            forks.add(fork);
+            outcomes.add(null);
+            index = forks.size() - 1;
+        }
+        // Observe before checking the shutdown so that even the fork cancelled right away is counted as completed.
+        // The faults (if any) are injected into the outcome the scope observes -- the fork itself is left as is.
+        CompletableFuture<T> observed = policy.withFaults(fork);
+        observed.whenComplete((value, exception) -> {
+            onComplete(index, value, exception);
+        });
+        if (observed != fork) {
+            // The fork cancelled by the shutdown is done as soon as it is -- no fault delays it past the deadline.
+            fork.whenComplete((value, exception) -> {
+                if (shutdown) {
+                    onComplete(index, value, exception);
+                }
+            });
+        }
+        if (shutdown) {
+            fork.cancel(true);
+            return false;
+        }
+        return true;
+    }
+    
+    private void onComplete(
+            int       index,
+            T         value,
+            Throwable exception) {
+        boolean toShutdown;
+        synchronized (this) {
+            // Only the first completion (of the fork or of its observed outcome) counts.
+            if (outcomes.get(index) != null) {
+                return;
+            }
+            // Completions caused by the shutdown do not count.
+            toShutdown = !shutdown && isToShutdown(index, value, exception);
+            outcomes.set(index, Outcome.of(value, exception));
+            completed++;
+            notifyAll();
+        }
+        if (toShutdown) {
+            boolean isFailed = (exception != null);
+            shutdown(isFailed ? CancellationToken.Reason.SIBLING_FAILED : CancellationToken.Reason.SHUTDOWN);
+        }
+    }
+    
+    /**
+     * Check if the scope should be shut down because of the completion of the subtask.
+     * 
+     * @param index
+     *            the index of the subtask.
+     * @param value
+     *            the value.
+     * @param exception
+     *            the exception or {@code null} if successful.
+     * @return true if the scope should be shut down.
+     */
+    abstract boolean isToShutdown(
+            int       index,
+            T         value,
+            Throwable exception);
+    
+    /**
+     * Shutdown the scope -- cancel (and interrupt) all the unfinished subtasks.
+     */
+    public void shutdown() {
+        shutdown(CancellationToken.Reason.SHUTDOWN);
+    }
+    
+    private void shutdown(
+            CancellationToken.Reason reason) {
+        token.trip(reason);
+        List<CompletableFuture<T>> toCancel;
+        synchronized (this) {
+            shutdown = true;
+            toCancel = new ArrayList<>(forks);
+            notifyAll();
+        }
+        for (CompletableFuture<T> fork : toCancel) {
+            if (!fork.isDone()) {
+                fork.cancel(true);
+            }
+        }
+    }
+    
+    /**
+     * Returns true if the scope is shut down.
+     * 
+     * @return true if the scope is shut down.
+     */
+    public boolean isShutdown() {
+        return shutdown;
+    }
+    
+    @Override
+    public void close() {
+        shutdown();
+    }
+    
+    /**
+     * Wait until all the subtasks complete or the scope is shut down or the deadline is passed -- and then until the
+     *   cancelled subtasks are completed too (but not past the deadline). The subtasks not completed by the deadline
+     *   are marked as timed out.
+     * 
+     * @return true if timeout.
+     */
+    boolean awaitJoin()
+            throws InterruptedException {
+        Long    waitTime  = policy.getWaitTime();
+        long    deadline  = (waitTime != null) ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitTime) : 0;
+        boolean isTimeout = false;
+        try {
+            synchronized (this) {
+                joined = true;
+                while (!shutdown && (completed < forks.size())) {
+                    if (waitTime == null) {
+                        wait();
+                    } else {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            markTimedOut();
+                            isTimeout = true;
+                            break;
+                        }
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    }
+                }
+            }
+            if (isTimeout) {
+                shutdown(CancellationToken.Reason.TIMEOUT);
+            }
+            // The shutdown (by whichever thread) cancels the subtasks outside the lock, so wait for their outcomes --
+            //   but not past the deadline.
+            synchronized (this) {
+                while (completed < forks.size()) {
+                    if (waitTime == null) {
+                        wait();
+                    } else {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            markTimedOut();
+                            break;
+                        }
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    }
+                }
+            }
+        } catch (InterruptedException exception) {
+            shutdown(CancellationToken.Reason.INTERRUPTED);
+            throw exception;
+        }
+        return isTimeout;
+    }
+    
+    private void markTimedOut() {
+        for (int i = 0; i < outcomes.size(); i++) {
+            if (outcomes.get(i) == null) {
+                timedOut.set(i);
+            }
+        }
+    }
+    
+    /**
+     * Stop forking and returns the subtasks -- for the join on a non-blocking thread which does not wait.
+     */
+    synchronized List<CompletableFuture<T>> joinWithoutWaiting() {
+        joined = true;
+        return new ArrayList<>(forks);
+    }
+    
+    /**
+     * Stop forking and shut down without waiting -- for the join rejected by the concurrency limit.
+     * 
+     * @return the number of the subtasks.
+     */
+    int reject() {
+        int size = joinWithoutWaiting().size();
+        shutdown();
+        return size;
+    }
+    
+    synchronized int size() {
+        return forks.size();
+    }
+    
+    synchronized int completed() {
+        return completed;
+    }
+    
+    /**
+     * Returns the outcome of the subtask -- {@code null} if the subtask is timed out.
+     */
+    synchronized Outcome<T> outcome(
+            int index) {
+        return timedOut.get(index) ? null : outcomes.get(index);
+    }
+    
+    // == AUX class ====================================================================================================
+    
+    /**
+     * The scope that shuts down as soon as one subtask fails.
+     */
+    public static class ShutdownOnFailure<T> extends StructuredScope<T> {
+        
+        private volatile int failedIndex = -1;
+        
+        ShutdownOnFailure(
+                AsyncToSync<T> policy,
+                Executor       executor) {
+            super(policy, executor);
+        }
+        
+        @Override
+        synchronized boolean isToShutdown(
+                int       index,
+                T         value,
+                Throwable exception) {
+            if ((exception == null) || (failedIndex != -1)) {
+                return false;
+            }
+            failedIndex = index;
+            return true;
+        }
+        
+        /**
+         * Join all the subtasks.
+         * 
+         * The first failure (if any) is handled first by the handlers of the AsyncToSync -- without a handler it is
+         *   thrown. The subtasks cancelled because of the failure are then handled as cancelled and the subtasks
+         *   not completed by the deadline get the timeout value.
+         * 
+         * @return the results in the order the subtasks are forked.
+         * @throws InterruptedException
+         *            when the current thread is interrupted.
+         */
+        public List<T> join()
+                throws InterruptedException {
+            if (policy.isOnNonBlockingThread()) {
+                // The handler is given each subtask.
+                List<T> results = new ArrayList<>();
+                for (CompletableFuture<T> fork : joinWithoutWaiting()) {
+                    results.add(policy.handleNonBlockingThread(fork));
+                }
+                return results;
+            }
+            
+            // The join is one invocation -- the subtasks are cancelled right away when rejected.
+            return policy.admit(policy.getSettings(), ()->policy.defaultValues(reject()), ()->{
+                awaitJoin();
+                
+                int failed       = failedIndex;
+                T   failedResult = (failed != -1) ? policy.handleOutcome(outcome(failed)) : null;
+                
+                int     size    = size();
+                List<T> results = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    T result = (i == failed) ? failedResult : policy.handleOutcome(outcome(i));
+                    results.add(result);
+                }
+                return results;
+            });
+        }
+        
+    }
+    
+    /**
+     * The scope that shuts down as soon as one subtask succeeds.
+     */
+    public static class ShutdownOnSuccess<T> extends StructuredScope<T> {
+        
+        private volatile int succeededIndex = -1;
+        
+        private volatile int failedIndex = -1;
+        
+        ShutdownOnSuccess(
+                AsyncToSync<T> policy,
+                Executor       executor) {
+            super(policy, executor);
+        }
+        
+        @Override
+        synchronized boolean isToShutdown(
+                int       index,
+                T         value,
+                Throwable exception) {
+            if (exception != null) {
+                if (failedIndex == -1) {
+                    failedIndex = index;
+                }
+                return false;
+            }
+            if (succeededIndex != -1) {
+                return false;
+            }
+            succeededIndex = index;
+            return true;
+        }
+        
+        /**
+         * Join the subtasks for the first successful result.
+         * 
+         * If no subtask succeeds, the first failure is handled by the handlers of the AsyncToSync. If the deadline is
+         *   passed, the timeout value is returned.
+         * 
+         * @return the first successful result.
+         * @throws InterruptedException
+         *            when the current thread is interrupted.
+         */
+        public T join()
+                throws InterruptedException {
+            if (policy.isOnNonBlockingThread()) {
+                // The handler is given the future of the first success.
+                List<CompletableFuture<T>> forks = joinWithoutWaiting();
+                if (forks.isEmpty()) {
+                    return policy.handleOutcome(Outcome.noFuture());
+                }
+                return policy.handleNonBlockingThread(firstSuccess(forks));
+            }
+            
+            // The join is one invocation -- the subtasks are cancelled right away when rejected.
+            return policy.admit(policy.getSettings(), ()->{
+                reject();
+                return policy.prepareDefaultValue();
+            }, ()->{
+                boolean isTimeout = awaitJoin();
+                
+                int succeeded = succeededIndex;
+                if (succeeded != -1) {
+                    return outcome(succeeded).value();
+                }
+                if (isTimeout) {
+                    return policy.handleOutcome(null);
+                }
+                int failed = failedIndex;
+                if (failed != -1) {
+                    return policy.handleOutcome(outcome(failed));
+                }
+                return policy.handleOutcome(Outcome.noFuture());
+            });
+        }
+        
+        private static <T> CompletableFuture<T> firstSuccess(
+                List<CompletableFuture<T>> forks) {
+            CompletableFuture<T>       first     = new CompletableFuture<>();
+            AtomicInteger              remaining = new AtomicInteger(forks.size());
+            AtomicReference<Throwable> failure   = new AtomicReference<>();
+            for (CompletableFuture<T> fork : forks) {
+                fork.whenComplete((value, exception) -> {
+                    if (exception == null) {
+                        first.complete(value);
+                    } else {
+                        failure.compareAndSet(null, exception);
+                    }
+                    if (remaining.decrementAndGet() == 0) {
+                        // None succeeds -- the first failure it is.
+                        first.completeExceptionally(failure.get());
+                    }
+                });
+            }
+            return first;
+        }
+        
+    }
+    
+}
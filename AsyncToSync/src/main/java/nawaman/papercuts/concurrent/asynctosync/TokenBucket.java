@@ -0,0 +1,115 @@
+package nawaman.papercuts.concurrent.asynctosync;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The token bucket limiting the rate of the supplier-based invocations of an {@link AsyncToSync}.
+ * 
+ * The bucket is kept as the time the next token is due (the virtual scheduling form of a token bucket) in a single
+ *   atomic long, so taking a token is one compare-and-set and no thread is needed to refill it. A token taken ahead of
+ *   time is a reservation -- the caller waits until it is due.
+ * 
+ * @author NawaMan
+ */
+final class TokenBucket {
+    
+    /** No token is available within the given wait. */
+    static final long THROTTLED = -1;
+    
+    private final long interval;
+    
+    private final long burstTolerance;
+    
+    private final boolean waitForToken;
+    
+    private final AtomicLong nextDue;
+    
+    private final LongAdder throttled = new LongAdder();
+    
+    /**
+     * Constructs a token bucket that starts full.
+     * 
+     * @param permitsPerSecond
+     *            the sustained rate.
+     * @param burst
+     *            the number of tokens the bucket holds.
+     * @param waitForToken
+     *            true if the callers may wait for a token.
+     */
+    TokenBucket(
+            double  permitsPerSecond,
+            int     burst,
+            boolean waitForToken) {
+        if (!(permitsPerSecond > 0) || Double.isInfinite(permitsPerSecond)) {
+            throw new IllegalArgumentException("Permits per second must be positive: " + permitsPerSecond);
+        }
+        if (burst < 1) {
+            throw new IllegalArgumentException("Burst must be at least one: " + burst);
+        }
+        this.interval       = Math.max(1, Math.round(TimeUnit.SECONDS.toNanos(1) / permitsPerSecond));
+        this.burstTolerance = this.interval * (burst - 1);
+        this.waitForToken   = waitForToken;
+        this.nextDue        = new AtomicLong(System.nanoTime());
+    }
+    
+    /**
+     * Returns true if the callers may wait for a token.
+     * 
+     * @return true if the callers may wait for a token.
+     */
+    boolean waitsForToken() {
+        return waitForToken;
+    }
+    
+    /**
+     * Returns the number of invocations turned away for the lack of a token.
+     * 
+     * @return the number of throttled invocations.
+     */
+    long throttled() {
+        return throttled.sum();
+    }
+    
+    /**
+     * Take a token if one is due within the given wait.
+     * 
+     * @param maxWaitNanos
+     *            the longest wait in nanosecond acceptable to the caller.
+     * @return the nanoseconds to wait before the token is due or {@link #THROTTLED}.
+     */
+    long reserve(
+            long maxWaitNanos) {
+        while (true) {
+            long now    = System.nanoTime();
+            long stored = nextDue.get();
+            long due    = ((stored - now) < 0) ? now : stored;
+            long wait   = due - burstTolerance - now;
+            if (wait > maxWaitNanos) {
+                throttled.increment();
+                return THROTTLED;
+            }
+            if (nextDue.compareAndSet(stored, due + interval)) {
+                return Math.max(0, wait);
+            }
+        }
+    }
+    
+    /**
+     * Give back the token reserved but not used -- the next due time moves back by one interval.
+     */
+    void refund() {
+        nextDue.addAndGet(-interval);
+    }
+    
+    /**
+     * Take a token only if one is available now.
+     * 
+     * @return true if a token is taken.
+     */
+    boolean tryAcquire() {
+        return reserve(0) == 0;
+    }
+    
+}
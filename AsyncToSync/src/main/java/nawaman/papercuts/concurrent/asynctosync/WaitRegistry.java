@@ -0,0 +1,232 @@
+package nawaman.papercuts.concurrent.asynctosync;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * The registry of the in-flight waits -- the threads currently waiting in {@link AsyncToSync} invocations.
+ * 
+ * The waits are kept in a concurrent set (which is already striped internally) so registering does not become a
+ *   contention point. The registry can be dumped on demand and can detect slow waits, capturing the stack of the
+ *   waiting thread once a wait exceeds the threshold.
+ * 
+ * Use {@link AsyncToSync#registerWaitsIn(WaitRegistry)} to have the invocations registered.
+ * 
+ * @author NawaMan
+ */
+public class WaitRegistry {
+    
+    private final Set<Wait> waits = ConcurrentHashMap.newKeySet();
+    
+    private volatile ScheduledFuture<?> detector = null;
+    
+    /**
+     * Register the wait of the current thread.
+     * 
+     * @param policyName
+     *            the name of the policy (may be {@code null}).
+     * @param future
+     *            the future being waited.
+     * @return the wait to be unregistered once done.
+     */
+    Wait register(
+            String    policyName,
+            Future<?> future) {
+        Thread thread = Thread.currentThread();
+        Wait   wait   = new Wait(this, policyName, thread, future);
+        waits.add(wait);
+        return wait;
+    }
+    
+    /**
+     * Returns the snapshot of the in-flight waits, the longest first.
+     * 
+     * @return the in-flight waits.
+     */
+    public List<Wait> snapshot() {
+        List<Wait> snapshot = new ArrayList<>(waits);
+        Collections.sort(snapshot, (a, b) -> Long.compare(a.startNanos, b.startNanos));
+        return snapshot;
+    }
+    
+    /**
+     * Returns the text dump of the in-flight waits.
+     * 
+     * @return the text dump.
+     */
+    public String dump() {
+        StringBuilder buffer = new StringBuilder();
+        for (Wait wait : snapshot()) {
+            buffer.append(wait).append('\n');
+            StackTraceElement[] stackTrace = wait.getStackTrace();
+            if (stackTrace != null) {
+                for (StackTraceElement element : stackTrace) {
+                    buffer.append("\tat ").append(element).append('\n');
+                }
+            }
+        }
+        return buffer.toString();
+    }
+    
+    /**
+     * Start detecting the slow waits. The stack of the waiting thread is captured once its wait exceeds the threshold
+     *   and the wait is then given to the listener. Only one detection can be active at a time.
+     * 
+     * @param thresholdMillis
+     *            the threshold in millisecond.
+     * @param listener
+     *            the listener to be notified of the slow waits (may be {@code null}).
+     * @return this registry.
+     */
+    public synchronized WaitRegistry detectSlowWaits(
+            long           thresholdMillis,
+            Consumer<Wait> listener) {
+        if (thresholdMillis <= 0) {
+            throw new IllegalArgumentException("Threshold must be positive: " + thresholdMillis);
+        }
+        stopDetectingSlowWaits();
+        
+        long thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+        long period         = Math.max(1, thresholdMillis / 2);
+        this.detector = SharedScheduler.instance().scheduleWithFixedDelay(()->{
+            scanSlowWaits(thresholdNanos, listener);
+        }, period, period, TimeUnit.MILLISECONDS);
+        return this;
+    }
+    
+    /**
+     * Stop detecting the slow waits.
+     * 
+     * @return this registry.
+     */
+    public synchronized WaitRegistry stopDetectingSlowWaits() {
+        if (this.detector != null) {
+            this.detector.cancel(false);
+            this.detector = null;
+        }
+        return this;
+    }
+    
+    private void scanSlowWaits(
+            long           thresholdNanos,
+            Consumer<Wait> listener) {
+        long now = System.nanoTime();
+        for (Wait wait : waits) {
+            if (((now - wait.startNanos) < thresholdNanos) || (wait.stackTrace != null)) {
+                continue;
+            }
+            wait.stackTrace = wait.thread.getStackTrace();
+            if (!waits.contains(wait)) {
+                // The wait was over while capturing -- the stack is not of the wait.
+                continue;
+            }
+            if (listener != null) {
+                try {
+                    listener.accept(wait);
+                } catch (RuntimeException exception) {
+                    // Do not let the listener stop the detection.
+                }
+            }
+        }
+    }
+    
+    // == AUX class ====================================================================================================
+    
+    /**
+     * An in-flight wait.
+     */
+    public static final class Wait {
+        
+        private final WaitRegistry registry;
+        
+        private final String policyName;
+        
+        private final Thread thread;
+        
+        private final Future<?> future;
+        
+        private final long startNanos = System.nanoTime();
+        
+        private volatile StackTraceElement[] stackTrace = null;
+        
+        Wait(
+                WaitRegistry registry,
+                String       policyName,
+                Thread       thread,
+                Future<?>    future) {
+            this.registry   = registry;
+            this.policyName = policyName;
+            this.thread     = thread;
+            this.future     = future;
+        }
+        
+        /**
+         * Unregister this wait from its registry.
+         */
+        void unregister() {
+            registry.waits.remove(this);
+        }
+        
+        /**
+         * Returns the name of the policy (may be {@code null}).
+         * 
+         * @return the name of the policy.
+         */
+        public String getPolicyName() {
+            return policyName;
+        }
+        
+        /**
+         * Returns the waiting thread.
+         * 
+         * @return the waiting thread.
+         */
+        public Thread getThread() {
+            return thread;
+        }
+        
+        /**
+         * Returns the future being waited.
+         * 
+         * @return the future.
+         */
+        public Future<?> getFuture() {
+            return future;
+        }
+        
+        /**
+         * Returns how long the thread has been waiting in millisecond.
+         * 
+         * @return the waiting time.
+         */
+        public long getWaitingMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        }
+        
+        /**
+         * Returns the captured stack of the waiting thread or {@code null} if the wait is not detected as slow.
+         * 
+         * @return the captured stack.
+         */
+        public StackTraceElement[] getStackTrace() {
+            return stackTrace;
+        }
+        
+        @Override
+        public String toString() {
+            return "Wait[policy=" + policyName
+                    + ", thread=" + thread.getName()
+                    + ", waiting=" + getWaitingMillis() + "ms"
+                    + ", future=" + future + "]";
+        }
+        
+    }
+    
+}
@@ -1,19 +1,54 @@
 package nawaman.papercuts.concurrency.asynctosync;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
 
+import javax.management.Attribute;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import nawaman.papercuts.concurrent.asynctosync.AsyncToDouble;
+import nawaman.papercuts.concurrent.asynctosync.AsyncToInt;
+import nawaman.papercuts.concurrent.asynctosync.AsyncToLong;
 import nawaman.papercuts.concurrent.asynctosync.AsyncToSync;
+import nawaman.papercuts.concurrent.asynctosync.AsyncToSyncException;
+import nawaman.papercuts.concurrent.asynctosync.AsyncToSyncExecutorService;
+import nawaman.papercuts.concurrent.asynctosync.CancellationToken;
+import nawaman.papercuts.concurrent.asynctosync.CompletableFutureTask;
+import nawaman.papercuts.concurrent.asynctosync.DeadlineExecutor;
+import nawaman.papercuts.concurrent.asynctosync.FaultInjection;
+import nawaman.papercuts.concurrent.asynctosync.NonBlockingThreads;
+import nawaman.papercuts.concurrent.asynctosync.Pipeline;
+import nawaman.papercuts.concurrent.asynctosync.PolicyRegistry;
+import nawaman.papercuts.concurrent.asynctosync.SizingAdvisor;
+import nawaman.papercuts.concurrent.asynctosync.StructuredScope;
+import nawaman.papercuts.concurrent.asynctosync.WaitRegistry;
 
 import org.junit.Test;
 
@@ -626,4 +661,1588 @@ public class AsyncToSyncTest {
                 logs.toString());
     }
     
+    @Test
+    public void stackless_cancellationThrownIsNewEachTime()
+            throws InterruptedException {
+        AsyncToSync<String> policy = new AsyncToSync<String>()
+                .stackless()
+                .injectFaults(new FaultInjection(42).cancel(1.0));
+        
+        List<CancellationException> thrown = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            try {
+                policy.invokeCallback(callback -> {});
+                fail("Expect a CancellationException!");
+            } catch (CancellationException exception) {
+                thrown.add(exception);
+            }
+        }
+        // The caller may add to it, so it is not shared -- yet it is still without stack trace.
+        assertTrue(thrown.get(0) != thrown.get(1));
+        assertEquals(0, thrown.get(0).getStackTrace().length);
+    }
+    
+    @Test
+    public void stackless_checkedExceptionIsWrappedWithoutStackTrace()
+            throws InterruptedException {
+        ExecutionException theException = new ExecutionException("", null);
+        try {
+            new AsyncToSync<String>()
+                    .stackless()
+                    .invoke(new Future<String>() {
+                        @Override
+                        public boolean cancel(boolean mayInterruptIfRunning) {
+                            return false;
+                        }
+                        @Override
+                        public boolean isCancelled() {
+                            return false;
+                        }
+                        @Override
+                        public boolean isDone() {
+                            return false;
+                        }
+                        @Override
+                        public String get() throws InterruptedException, ExecutionException {
+                            throw theException;
+                        }
+                        @Override
+                        public String get(long timeout, TimeUnit unit)
+                                throws InterruptedException, ExecutionException,
+                                TimeoutException {
+                            return null;
+                        }
+                    });
+            fail("Expect a RuntimeException!");
+        } catch (AsyncToSyncException exception) {
+            assertEquals(theException, exception.getCause());
+            assertEquals(0, exception.getStackTrace().length);
+        }
+    }
+    
+    @Test
+    public void parallelyIsInterruptedWhenTheFutureCompletes()
+            throws InterruptedException {
+        CountDownLatch stopped = new CountDownLatch(1);
+        
+        String result = new AsyncToSync<String>()
+                .parallely(() -> {
+                    try {
+                        Thread.sleep(10_000);
+                    } catch (InterruptedException e) {
+                        stopped.countDown();
+                    }
+                })
+                .invoke(CompletableFuture.supplyAsync(() -> {
+                    sleep(50);
+                    return "-inside-";
+                }));
+        
+        assertEquals("-inside-", result);
+        assertTrue(stopped.await(1, TimeUnit.SECONDS));
+    }
+    
+    @Test
+    public void periodicallyTicksUntilTheFutureCompletes()
+            throws InterruptedException {
+        AtomicInteger ticks = new AtomicInteger();
+        
+        String result = new AsyncToSync<String>()
+                .periodically(0, 10, () -> {
+                    ticks.incrementAndGet();
+                })
+                .invoke(CompletableFuture.supplyAsync(() -> {
+                    sleep(100);
+                    return "-inside-";
+                }));
+        
+        int ticksAtReturn = ticks.get();
+        sleep(50);
+        
+        assertEquals("-inside-", result);
+        assertTrue(ticksAtReturn >= 2);
+        assertEquals(ticksAtReturn, ticks.get());
+    }
+    
+    @Test
+    public void periodically_returnsWithoutWaitingForTheTickInProgress()
+            throws InterruptedException {
+        CountDownLatch ticking = new CountDownLatch(1);
+        CompletableFuture<String> future = new CompletableFuture<>();
+        AsyncToSync<String> policy = new AsyncToSync<String>()
+                .periodically(0, 10, () -> {
+                    ticking.countDown();
+                    sleep(500);
+                });
+        
+        new Thread(() -> {
+            try {
+                ticking.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            future.complete("-result-");
+        }).start();
+        
+        long start = System.currentTimeMillis();
+        assertEquals("-result-", policy.invoke(future));
+        assertTrue(System.currentTimeMillis() - start < 400);
+    }
+    
+    @Test
+    public void lastKnownGood_timeoutReturnsThePreviousValue()
+            throws InterruptedException {
+        AsyncToSync<String> policy = new AsyncToSync<String>()
+                .onTimeout(50)
+                .orElse("-orElse-")
+                .orLastKnownGood();
+        
+        String first = policy.invoke(CompletableFuture.supplyAsync(() -> "-first-"));
+        
+        String second = policy.invoke(CompletableFuture.supplyAsync(() -> {
+            sleep(100);
+            return "-second-";
+        }));
+        
+        assertEquals("-first-",  first);
+        assertEquals("-first-",  second);
+        
+        sleep(100);
+        assertEquals("-second-", policy.getLastKnownGood(null));
+    }
+    
+    @Test
+    public void lastKnownGood_byKey()
+            throws InterruptedException {
+        AsyncToSync<String> policy = new AsyncToSync<String>()
+                .orElse("-orElse-")
+                .orLastKnownGood();
+        
+        policy.invokeFor("A", CompletableFuture.supplyAsync(() -> "-A-"));
+        
+        String resultA = policy.invokeFor("A", CompletableFuture.supplyAsync(() -> {
+            throw new RuntimeException();
+        }));
+        String resultB = policy.invokeFor("B", CompletableFuture.supplyAsync(() -> {
+            throw new RuntimeException();
+        }));
+        
+        assertEquals("-A-",      resultA);
+        assertEquals("-orElse-", resultB);
+    }
+    
+    @Test
+    public void lastKnownGood_evictsTheKeysAddedFirst()
+            throws InterruptedException {
+        AsyncToSync<String> policy = new AsyncToSync<String>()
+                .orLastKnownGood(2);
+        
+        policy.invokeFor("A", CompletableFuture.completedFuture("-A-"));
+        policy.invokeFor("B", CompletableFuture.completedFuture("-B-"));
+        policy.invokeFor("A", CompletableFuture.completedFuture("-A2-"));
+        policy.invokeFor("C", CompletableFuture.completedFuture("-C-"));
+        
+        assertEquals(null,  policy.getLastKnownGood("A"));
+        assertEquals("-B-", policy.getLastKnownGood("B"));
+        assertEquals("-C-", policy.getLastKnownGood("C"));
+    }
+    
+    @Test
+    public void hedge_slowFirstAttemptIsHedged()
+            throws InterruptedException {
+        AtomicInteger attempts = new AtomicInteger();
+        AsyncToSync<String> policy = new AsyncToSync<String>()
+                .onTimeout(1000)
+                .hedge(50, 1);
+        
+        String result = policy.invokeWith(() -> {
+            int attempt = attempts.incrementAndGet();
+            return CompletableFuture.supplyAsync(() -> {
+                sleep((attempt == 1) ? 500 : 10);
+                return "-attempt-" + attempt + "-";
+            });
+        });
+        
+        assertEquals("-attempt-2-", result);
+        assertEquals(2, attempts.get());
+        assertEquals(1, policy.getHedgesFired());
+        assertEquals(1, policy.getHedgesWon());
+    }
+    
+    @Test
+    public void hedge_fastFirstAttemptIsNotHedged()
+            throws InterruptedException {
+        AtomicInteger attempts = new AtomicInteger();
+        AsyncToSync<String> policy = new AsyncToSync<String>()
+                .hedge(200, 1);
+        
+        String result = policy.invokeWith(() -> {
+            int attempt = attempts.incrementAndGet();
+            return CompletableFuture.supplyAsync(() -> "-attempt-" + attempt + "-");
+        });
+        sleep(300);
+        
+        assertEquals("-attempt-1-", result);
+        assertEquals(1, attempts.get());
+        assertEquals(0, policy.getHedgesFired());
+    }
+    
+    @Test
+    public void invokeParallel_keepsAtMostParallelismInFlight()
+            throws InterruptedException {
+        AtomicInteger inFlight    = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        List<Integer> inputs = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            inputs.add(i);
+        }
+        
+        List<String> results = new AsyncToSync<String>()
+                .orElse("-failed-")
+                .invokeParallel(inputs, input -> CompletableFuture.supplyAsync(() -> {
+                    maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                    sleep(10);
+                    inFlight.decrementAndGet();
+                    if (input == 5) {
+                        throw new RuntimeException();
+                    }
+                    return "-" + input + "-";
+                }), 3);
+        
+        assertEquals(20, results.size());
+        assertEquals("-0-",      results.get(0));
+        assertEquals("-failed-", results.get(5));
+        assertEquals("-19-",     results.get(19));
+        assertTrue(maxInFlight.get() <= 3);
+    }
+    
+    @Test
+    public void inCompletionOrder()
+            throws InterruptedException {
+        List<CompletableFuture<String>> futures = new ArrayList<>();
+        futures.add(CompletableFuture.supplyAsync(() -> { sleep(300); return "-slow-"; }));
+        futures.add(CompletableFuture.supplyAsync(() -> { sleep(10);  return "-fast-"; }));
+        futures.add(CompletableFuture.supplyAsync(() -> { sleep(100); throw new RuntimeException(); }));
+        futures.add(CompletableFuture.supplyAsync(() -> { sleep(5_000); return "-too-slow-"; }));
+        
+        List<String> results = new ArrayList<>();
+        new AsyncToSync<String>()
+                .onTimeout(500, () -> "-timeout-")
+                .onException(exception -> "-failed-")
+                .inCompletionOrder(futures)
+                .forEachRemaining(results::add);
+        
+        assertEquals(
+                "[-fast-, -failed-, -slow-, -timeout-]",
+                results.toString());
+    }
+    
+    @Test
+    public void invokeReduce()
+            throws InterruptedException {
+        List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        for (int i = 1; i <= 100; i++) {
+            int value = i;
+            futures.add(CompletableFuture.supplyAsync(() -> {
+                if (value == 50) {
+                    throw new RuntimeException();
+                }
+                return value;
+            }));
+        }
+        
+        int sum = new AsyncToSync<Integer>()
+                .orElse(0)
+                .invokeReduce(futures, 0, (total, value) -> total + value);
+        
+        assertEquals(5050 - 50, sum);
+    }
+    
+    @Test
+    public void invokeReduce_takesTheFuturesAsTheResultsAreFolded()
+            throws InterruptedException {
+        AtomicInteger taken  = new AtomicInteger();
+        AtomicInteger folded = new AtomicInteger();
+        AtomicInteger ahead  = new AtomicInteger();
+        Iterable<Future<Integer>> futures = () -> new Iterator<Future<Integer>>() {
+            @Override
+            public boolean hasNext() {
+                return taken.get() < 10_000;
+            }
+            @Override
+            public Future<Integer> next() {
+                int value = taken.incrementAndGet();
+                ahead.accumulateAndGet(value - folded.get(), Math::max);
+                return CompletableFuture.completedFuture(1);
+            }
+        };
+        
+        int sum = new AsyncToSync<Integer>()
+                .invokeReduce(futures, 0, (total, value) -> {
+                    folded.incrementAndGet();
+                    return total + value;
+                });
+        
+        assertEquals(10_000, sum);
+        assertTrue(ahead.get() <= 1024);
+    }
+    
+    @Test
+    public void abandonedWaitsDoNotHoldMemory()
+            throws InterruptedException {
+        CompletableFuture<String> pending = new CompletableFuture<>();
+        AsyncToSync<String> policy = new AsyncToSync<String>()
+                .onTimeout(0)
+                .orElse("-timeout-");
+        assertEquals("-timeout-", policy.invoke(pending));
+        
+        int  waits  = 20_000;
+        long before = usedHeap();
+        for (int i = 0; i < waits; i++) {
+            policy.invoke(pending);
+        }
+        long after = usedHeap();
+        
+        // Each abandoned wait leaves only its detached hook on the pending future -- not the waiter nor the policy.
+        assertFalse(pending.isDone());
+        long perWait = (after - before) / waits;
+        assertTrue("Retained " + perWait + " bytes per abandoned wait", perWait < 200);
+        
+        WeakReference<AsyncToSync<String>> policyRef = new WeakReference<>(policy);
+        policy = null;
+        assertTrue(isCollected(policyRef));
+    }
+    
+    @Test
+    public void interruptedWaitsDoNotHoldMemory()
+            throws InterruptedException {
+        CompletableFuture<String> pending = new CompletableFuture<>();
+        AsyncToSync<String> policy = new AsyncToSync<String>()
+                .onTimeout(10_000);
+        
+        List<WeakReference<Thread>> waiters = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            AtomicReference<String> result = new AtomicReference<>();
+            Thread waiter = new Thread(() -> {
+                result.set(policy.carelessly("-interrupted-").invoke(pending));
+            });
+            int dependents = pending.getNumberOfDependents();
+            waiter.start();
+            while (pending.getNumberOfDependents() == dependents) {
+                Thread.yield();
+            }
+            waiter.interrupt();
+            waiter.join();
+            assertEquals("-interrupted-", result.get());
+            waiters.add(new WeakReference<>(waiter));
+        }
+        
+        // The pending future does not hold the waiting threads (nor anything of their waits).
+        assertFalse(pending.isDone());
+        for (WeakReference<Thread> waiter : waiters) {
+            assertTrue(isCollected(waiter));
+        }
+    }
+    
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+    
+    private static boolean isCollected(WeakReference<?> reference) {
+        for (int i = 0; (i < 50) && (reference.get() != null); i++) {
+            usedHeap();
+        }
+        return reference.get() == null;
+    }
+    
+    private void callAsync(String request, BiConsumer<String, Throwable> callback) {
+        new Thread(() -> {
+            sleep(50);
+            if (request == null) {
+                callback.accept(null, new IllegalArgumentException());
+            } else {
+                callback.accept("-" + request + "-", null);
+            }
+        }).start();
+    }
+    
+    @Test
+    public void invokeCallback()
+            throws InterruptedException {
+        String result = new AsyncToSync<String>()
+                .invokeCallback(callback -> callAsync("request", callback));
+        
+        assertEquals("-request-", result);
+    }
+    
+    @Test
+    public void invokeCallback_exception()
+            throws InterruptedException {
+        String result = new AsyncToSync<String>()
+                .onException(exception -> exception.getClass().getSimpleName())
+                .invokeCallback(callback -> callAsync(null, callback));
+        
+        assertEquals("IllegalArgumentException", result);
+    }
+    
+    @Test
+    public void invokeCallback_timeout()
+            throws InterruptedException {
+        String result = new AsyncToSync<String>()
+                .onTimeout(10)
+                .orElse("-timeout-")
+                .invokeCallback(callback -> callAsync("request", callback));
+        
+        assertEquals("-timeout-", result);
+    }
+    
+    @Test
+    public void invokeCallback_sameGuardsAsOtherInvocations()
+            throws InterruptedException {
+        AsyncToSync<String> faulty = new AsyncToSync<String>()
+                .onCancelled(() -> "-cancelled-")
+                .injectFaults(new FaultInjection(42).cancel(1.0));
+        assertEquals("-cancelled-", faulty.invokeCallback(callback -> callAsync("request", callback)));
+        
+        CompletableFuture<String> pending = new CompletableFuture<>();
+        AtomicInteger             calls   = new AtomicInteger();
+        AsyncToSync<String>       limited = new AsyncToSync<String>()
+                .maxConcurrent(1)
+                .orElse("-rejected-");
+        Thread first = new Thread(() -> {
+            limited.carelessly().invoke(pending);
+        });
+        first.start();
+        while (pending.getNumberOfDependents() == 0) {
+            Thread.yield();
+        }
+        
+        String result = limited.invokeCallback(callback -> {
+            calls.incrementAndGet();
+            callAsync("request", callback);
+        });
+        first.interrupt();
+        first.join();
+        
+        assertEquals("-rejected-", result);
+        assertEquals(0, calls.get());
+    }
+    
+    @Test
+    public void completableFutureTask_fromExecutorService()
+            throws InterruptedException {
+        ExecutorService executor = new AsyncToSyncExecutorService(Executors.newSingleThreadExecutor());
+        try {
+            Future<String> future = executor.submit(() -> {
+                sleep(50);
+                return "-inside-";
+            });
+            
+            String result = new AsyncToSync<String>()
+                    .invoke(future);
+            
+            assertTrue(future instanceof CompletableFutureTask);
+            assertEquals("-inside-", result);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    @Test
+    public void completableFutureTask_cancelledFromParallely()
+            throws InterruptedException {
+        ExecutorService executor = new AsyncToSyncExecutorService(Executors.newSingleThreadExecutor());
+        try {
+            Future<String> future = executor.submit(() -> {
+                sleep(10_000);
+                return "-inside-";
+            });
+            
+            String result = new AsyncToSync<String>()
+                    .parallely(theFuture -> {
+                        sleep(10);
+                        theFuture.cancel(true);
+                    })
+                    .onCancelled("-cancelled-")
+                    .invoke(future);
+            
+            assertEquals("-cancelled-", result);
+            assertTrue(future.isCancelled());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    @Test
+    public void waitRegistry_tracksInFlightWaitsAndDetectsSlowOnes()
+            throws InterruptedException {
+        WaitRegistry registry = new WaitRegistry();
+        List<WaitRegistry.Wait> slowWaits = new CopyOnWriteArrayList<>();
+        List<String> inFlight = new CopyOnWriteArrayList<>();
+        registry.detectSlowWaits(50, slowWaits::add);
+        try {
+            String result = new AsyncToSync<String>()
+                    .named("slow-policy")
+                    .registerWaitsIn(registry)
+                    .parallely(() -> {
+                        sleep(20);
+                        for (WaitRegistry.Wait wait : registry.snapshot()) {
+                            inFlight.add(wait.getPolicyName());
+                        }
+                    })
+                    .invoke(CompletableFuture.supplyAsync(() -> {
+                        sleep(200);
+                        return "-inside-";
+                    }));
+            
+            assertEquals("-inside-", result);
+            assertEquals("[slow-policy]", inFlight.toString());
+            assertEquals(1, slowWaits.size());
+            assertEquals("slow-policy", slowWaits.get(0).getPolicyName());
+            assertTrue(slowWaits.get(0).getStackTrace().length > 0);
+            assertTrue(registry.snapshot().isEmpty());
+        } finally {
+            registry.stopDetectingSlowWaits();
+        }
+    }
+    
+    @Test
+    public void scopeOnFailure_cancelsSiblingsOnFirstFailure()
+            throws InterruptedException {
+        RuntimeException theException = new RuntimeException();
+        CountDownLatch   interrupted  = new CountDownLatch(1);
+        long start = System.currentTimeMillis();
+        try (StructuredScope.ShutdownOnFailure<String> scope = new AsyncToSync<String>().scopeOnFailure()) {
+            scope.fork(() -> {
+                try {
+                    Thread.sleep(10_000);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                }
+                return "-slow-";
+            });
+            scope.fork(() -> {
+                sleep(50);
+                throw theException;
+            });
+            scope.join();
+            fail("Expect a RuntimeException!");
+        } catch (RuntimeException exception) {
+            assertEquals(theException, exception);
+        }
+        
+        assertTrue(interrupted.await(1, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - start < 5_000);
+    }
+    
+    @Test
+    public void scopeOnFailure_allSucceed()
+            throws InterruptedException {
+        try (StructuredScope.ShutdownOnFailure<String> scope = new AsyncToSync<String>().scopeOnFailure()) {
+            scope.fork(() -> { sleep(50); return "-A-"; });
+            scope.forkAsync(() -> CompletableFuture.supplyAsync(() -> "-B-"));
+            
+            assertEquals("[-A-, -B-]", scope.join().toString());
+        }
+    }
+    
+    @Test
+    public void scopeOnSuccess_returnsTheFirstSuccess()
+            throws InterruptedException {
+        try (StructuredScope.ShutdownOnSuccess<String> scope = new AsyncToSync<String>().scopeOnSuccess()) {
+            scope.fork(() -> { sleep(10_000); return "-slow-"; });
+            scope.fork(() -> { throw new RuntimeException(); });
+            scope.fork(() -> { sleep(50); return "-fast-"; });
+            
+            assertEquals("-fast-", scope.join());
+            assertTrue(scope.isShutdown());
+        }
+    }
+    
+    @Test
+    public void scope_timeout()
+            throws InterruptedException {
+        try (StructuredScope.ShutdownOnSuccess<String> scope = new AsyncToSync<String>()
+                .onTimeout(50, () -> "-timeout-")
+                .scopeOnSuccess()) {
+            scope.fork(() -> { sleep(10_000); return "-slow-"; });
+            
+            assertEquals("-timeout-", scope.join());
+        }
+    }
+    
+    @Test
+    public void scopeJoin_injectedLatencyDoesNotPassTheDeadline()
+            throws InterruptedException {
+        AsyncToSync<String> policy = new AsyncToSync<String>()
+                .onTimeout(50, () -> "-timeout-")
+                .injectFaults(new FaultInjection(42).delay(1.0, 500));
+        
+        long start = System.nanoTime();
+        try (StructuredScope.ShutdownOnFailure<String> scope = policy.scopeOnFailure()) {
+            scope.fork(() -> { sleep(1_000); return "-slow-"; });
+            scope.forkAsync(() -> new CompletableFuture<String>());
+            assertEquals("[-timeout-, -timeout-]", scope.join().toString());
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("Joined after " + elapsed + " ms", elapsed < 300);
+    }
+    
+    @Test
+    public void scopeOnFailure_timeoutOnlyTheUnfinished()
+            throws InterruptedException {
+        try (StructuredScope.ShutdownOnFailure<String> scope = new AsyncToSync<String>()
+                .onTimeout(50, () -> "-timeout-")
+                .onCancelled(() -> "-cancelled-")
+                .scopeOnFailure()) {
+            scope.fork(() -> { sleep(10_000); return "-slow-"; });
+            scope.forkAsync(() -> CompletableFuture.completedFuture("-ok-"));
+            
+            assertEquals("[-timeout-, -ok-]", scope.join().toString());
+        }
+    }
+    
+    @Test
+    public void nonBlockingThread_failFast()
+            throws InterruptedException {
+        NonBlockingThreads.addThreadNamePattern("test-event-loop-\\d+");
+        try {
+            AsyncToSync<String> policy = new AsyncToSync<String>().named("no-block").failOnNonBlockingThread();
+            long before = NonBlockingThreads.getBlockingCallCount();
+            
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            Thread eventLoop = new Thread(() -> {
+                try {
+                    policy.invoke(new CompletableFuture<String>());
+                } catch (Throwable exception) {
+                    failure.set(exception);
+                }
+            }, "test-event-loop-1");
+            eventLoop.start();
+            eventLoop.join(5_000);
+            
+            assertTrue(failure.get() instanceof IllegalStateException);
+            assertTrue(failure.get().getMessage().contains("test-event-loop-1"));
+            assertEquals(1, NonBlockingThreads.getBlockingCallCount() - before);
+            
+            // Other threads still block as usual.
+            assertEquals("-result-", policy.invoke(CompletableFuture.completedFuture("-result-")));
+        } finally {
+            NonBlockingThreads.clear();
+        }
+    }
+    
+    @Test
+    public void nonBlockingThread_handOff()
+            throws InterruptedException {
+        AsyncToSync<String> policy = new AsyncToSync<String>().onTimeout(50, () -> "-timeout-");
+        List<CompletableFuture<String>> handedOff = new CopyOnWriteArrayList<>();
+        policy.onNonBlockingThread(future -> {
+            handedOff.add(policy.invokeAsync(future));
+            return "-handed-off-";
+        });
+        
+        AtomicReference<String>  returned = new AtomicReference<>();
+        AtomicReference<Boolean> blocked  = new AtomicReference<>();
+        Thread eventLoop = new Thread(() -> {
+            NonBlockingThreads.markCurrentThread();
+            try {
+                long start = System.currentTimeMillis();
+                returned.set(policy.invoke(new CompletableFuture<String>()));
+                blocked.set(System.currentTimeMillis() - start >= 50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                NonBlockingThreads.unmarkCurrentThread();
+            }
+        });
+        eventLoop.start();
+        eventLoop.join(5_000);
+        
+        assertEquals("-handed-off-", returned.get());
+        assertFalse(blocked.get());
+        assertEquals("-timeout-", handedOff.get(0).join());
+        
+        CompletableFuture<String> async = policy.invokeAsync(new CompletableFuture<String>());
+        assertEquals("-timeout-", async.join());
+    }
+    
+    @Test
+    public void nonBlockingThread_manyFuturesAreHandedOff()
+            throws InterruptedException {
+        AsyncToSync<String> policy = new AsyncToSync<String>()
+                .onNonBlockingThread(future -> future.isDone() ? "-done-" : "-handed-off-");
+        
+        List<String> results = new CopyOnWriteArrayList<>();
+        Thread eventLoop = new Thread(() -> {
+            NonBlockingThreads.markCurrentThread();
+            try {
+                List<CompletableFuture<String>> futures = Arrays.asList(
+                        new CompletableFuture<String>(),
+                        CompletableFuture.completedFuture("-ready-"));
+                results.add(policy.invokeReduce(futures, "", (total, value) -> total + value));
+                results.add(policy.invokeParallel(Arrays.asList("A"), input -> new CompletableFuture<String>(), 1)
+                        .toString());
+                
+                Iterator<String> iterator = policy.inCompletionOrder(futures);
+                results.add(iterator.next() + iterator.next());
+                
+                try (StructuredScope.ShutdownOnFailure<String> scope = policy.scopeOnFailure()) {
+                    scope.forkAsync(() -> new CompletableFuture<String>());
+                    results.add(scope.join().toString());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                NonBlockingThreads.unmarkCurrentThread();
+            }
+        });
+        eventLoop.start();
+        eventLoop.join(5_000);
+        
+        assertEquals("[-handed-off--done-, [-handed-off-], -ready--handed-off-, [-handed-off-]]", results.toString());
+    }
+    
+    @Test
+    public void nonBlockingThread_invokeWithHandsOffTheLiveFuture()
+            throws InterruptedException {
+        AtomicReference<Future<String>> handedOff = new AtomicReference<>();
+        AsyncToSync<String> policy = new AsyncToSync<String>()
+                .onTimeout(5_000, () -> "-timeout-")
+                .rateLimit(1, 1)
+                .hedge(1_000, 1)
+                .onNonBlockingThread(future -> {
+                    handedOff.set(future);
+                    return "-handed-off-";
+                });
+        
+        CompletableFuture<String> pending = new CompletableFuture<>();
+        List<String> results = new CopyOnWriteArrayList<>();
+        Thread eventLoop = new Thread(() -> {
+            NonBlockingThreads.markCurrentThread();
+            try {
+                results.add(policy.invokeWith(() -> pending));
+                // No token now and no wait for one either.
+                long start = System.currentTimeMillis();
+                results.add(policy.invokeWith(() -> pending));
+                results.add((System.currentTimeMillis() - start < 500) ? "-no-wait-" : "-waited-");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                NonBlockingThreads.unmarkCurrentThread();
+            }
+        });
+        eventLoop.start();
+        eventLoop.join(5_000);
+        
+        assertEquals("[-handed-off-, -timeout-, -no-wait-]", results.toString());
+        // The hedged future given to the handler is not given up as no one has waited for it.
+        assertFalse(handedOff.get().isDone());
+        pending.complete("-result-");
+        assertEquals("-result-", policy.invokeAsync(handedOff.get()).join());
+    }
+    
+    @Test
+    public void invokeAsync_holdsNoThreadButForThePlainFuture()
+            throws InterruptedException {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            AsyncToSync<String> policy = new AsyncToSync<String>()
+                    .onTimeout(1_000, () -> "-timeout-")
+                    .internalExecutor(executor);
+            
+            // None of these holds the only thread of the executor.
+            List<CompletableFuture<String>> pendings = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                pendings.add(policy.invokeAsync(new CompletableFuture<String>()));
+            }
+            
+            FutureTask<String> plain = new FutureTask<>(() -> "-plain-");
+            CompletableFuture<String> result = policy.invokeAsync(plain);
+            new Thread(() -> { sleep(20); plain.run(); }).start();
+            
+            assertEquals("-plain-", result.join());
+            for (CompletableFuture<String> pending : pendings) {
+                assertEquals("-timeout-", pending.join());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    private <T> T throwing(RuntimeException exception) {
+        throw exception;
+    }
+    
+    private <T> CompletableFuture<T> delayAsync(long delay, Supplier<T> supplier) {
+        return CompletableFuture.supplyAsync(() -> {
+            sleep(delay);
+            return supplier.get();
+        }, runnable -> new Thread(runnable).start());
+    }
+    
+    @Test
+    public void pipeline_stagesWithFallback()
+            throws InterruptedException {
+        List<String> stageTimes = new CopyOnWriteArrayList<>();
+        Pipeline<String> pipeline = Pipeline
+                .start ("fetch",   ()   -> delayAsync(50, () -> 42))
+                .then  ("enrich",  id   -> delayAsync(10, () -> this.<String>throwing(new RuntimeException())))
+                .orElse(exception       -> "-unenriched-")
+                .then  ("persist", data -> delayAsync(50, () -> data + "-persisted-"))
+                .reportStageTime((stage, time) -> stageTimes.add(stage));
+        
+        String result = new AsyncToSync<String>()
+                .onTimeout(5_000, () -> "-timeout-")
+                .invokePipeline(pipeline);
+        
+        assertEquals("-unenriched--persisted-", result);
+        assertEquals("[fetch, enrich, persist]", stageTimes.toString());
+    }
+    
+    @Test
+    public void pipeline_singleDeadline()
+            throws InterruptedException {
+        AtomicInteger persisted = new AtomicInteger();
+        Pipeline<String> pipeline = Pipeline
+                .start("fetch",   ()   -> delayAsync(40, () -> "-data-"))
+                .then ("enrich",  data -> delayAsync(40, () -> data + "-enriched-"))
+                .then ("persist", data -> delayAsync(40, () -> { persisted.incrementAndGet(); return data; }));
+        
+        // Each stage is within the timeout but the whole pipeline is not.
+        String result = new AsyncToSync<String>()
+                .onTimeout(60, () -> "-timeout-")
+                .invokePipeline(pipeline);
+        
+        assertEquals("-timeout-", result);
+        sleep(200);
+        assertEquals(0, persisted.get());
+    }
+    
+    @Test
+    public void cancellationToken_trippedOnTimeout()
+            throws InterruptedException {
+        AtomicReference<CancellationToken> theToken = new AtomicReference<>();
+        CountDownLatch                     stopped  = new CountDownLatch(1);
+        AtomicInteger                      loops    = new AtomicInteger();
+        String result = new AsyncToSync<String>()
+                .onTimeout(50, () -> "-timeout-")
+                .invokeCancellable(token -> {
+                    theToken.set(token);
+                    token.onCancel(stopped::countDown);
+                    return CompletableFuture.supplyAsync(() -> {
+                        while (!token.isCancelled()) {
+                            loops.incrementAndGet();
+                            sleep(5);
+                        }
+                        return "-stopped-";
+                    }, runnable -> new Thread(runnable).start());
+                });
+        
+        assertEquals("-timeout-", result);
+        assertTrue(stopped.await(1, TimeUnit.SECONDS));
+        assertEquals(CancellationToken.Reason.TIMEOUT, theToken.get().getReason());
+    }
+    
+    @Test
+    public void cancellationToken_notTrippedOnTimeoutWhileRefreshingLastKnownGood()
+            throws InterruptedException {
+        AsyncToSync<String> policy = new AsyncToSync<String>()
+                .onTimeout(50, () -> "-timeout-")
+                .orLastKnownGood();
+        assertEquals("-first-", policy.invokeCancellable(token -> CompletableFuture.completedFuture("-first-")));
+        
+        AtomicReference<CancellationToken> theToken = new AtomicReference<>();
+        String result = policy.invokeCancellable(token -> {
+            theToken.set(token);
+            return delayAsync(100, () -> "-refreshed-");
+        });
+        
+        assertEquals("-first-", result);
+        assertFalse(theToken.get().isCancelled());
+        sleep(200);
+        assertEquals("-refreshed-", policy.getLastKnownGood(null));
+    }
+    
+    @Test
+    public void cancellationToken_notTrippedOnSuccess()
+            throws InterruptedException {
+        AtomicReference<CancellationToken> theToken = new AtomicReference<>();
+        String result = new AsyncToSync<String>()
+                .onTimeout(1_000, () -> "-timeout-")
+                .invokeCancellable(token -> {
+                    theToken.set(token);
+                    return delayAsync(10, () -> "-result-");
+                });
+        
+        assertEquals("-result-", result);
+        assertFalse(theToken.get().isCancelled());
+    }
+    
+    @Test
+    public void cancellationToken_notTrippedAsTimeoutWhenReturningEarly()
+            throws InterruptedException {
+        AtomicReference<CancellationToken> theToken = new AtomicReference<>();
+        CompletableFuture<String>          running  = new CompletableFuture<>();
+        String result = new AsyncToSync<String>()
+                .onTimeout(1_000, () -> "-timeout-")
+                .onException(exception -> "-failed-")
+                .injectFaults(new FaultInjection(42).fail(1.0))
+                .invokeCancellable(token -> {
+                    theToken.set(token);
+                    return running;
+                });
+        
+        // The wait ends with the injected failure while the work is still running -- that is not a timeout.
+        assertEquals("-failed-", result);
+        assertFalse(running.isDone());
+        assertFalse(theToken.get().isCancelled());
+    }
+    
+    @Test
+    public void cancellationToken_trippedOnSiblingFailure()
+            throws InterruptedException {
+        CompletableFuture<String> slow = new CompletableFuture<>();
+        try (StructuredScope.ShutdownOnFailure<String> scope = new AsyncToSync<String>()
+                .onException(exception -> "-failed-")
+                .scopeOnFailure()) {
+            scope.forkCancellable(token -> {
+                token.onCancel(() -> slow.complete("-stopped-"));
+                return slow;
+            });
+            scope.forkAsync(() -> delayAsync(20, () -> this.<String>throwing(new RuntimeException())));
+            scope.join();
+            
+            assertEquals(CancellationToken.Reason.SIBLING_FAILED, scope.getCancellationToken().getReason());
+            assertEquals("-stopped-", slow.getNow(null));
+        }
+    }
+    
+    @Test
+    public void sizingAdvisor()
+            throws InterruptedException {
+        AsyncToSync<String> policy = new AsyncToSync<String>()
+                .onTimeout(20, () -> "-timeout-")
+                .measureSizing();
+        for (int i = 0; i < 5; i++) {
+            assertEquals("-timeout-", policy.invoke(delayAsync(60, () -> "-result-")));
+        }
+        sleep(100);
+        
+        SizingAdvisor advisor = policy.getSizingAdvisor();
+        assertTrue(advisor.getAverageWaitMillis()    >= 20);
+        assertTrue(advisor.getAverageWaitMillis()    <  60);
+        assertTrue(advisor.getAverageServiceMillis() >= 60);
+        assertTrue(advisor.getThroughput() > 0);
+        // The work takes longer than the wait, so more threads run the work than wait for it.
+        assertTrue(advisor.getEstimatedPoolSize() >= advisor.getEstimatedCallerThreads());
+        
+        advisor.reset();
+        assertEquals(0.0, advisor.getAverageWaitMillis(), 0.0);
+    }
+    
+    @Test
+    public void sizingAdvisor_measuresFromTheSubmission()
+            throws InterruptedException {
+        AsyncToSync<String> policy = new AsyncToSync<String>()
+                .measureSizing();
+        // The work is done by the supplier before the future is returned.
+        assertEquals("-result-", policy.invokeWith(() -> {
+            sleep(50);
+            return CompletableFuture.completedFuture("-result-");
+        }));
+        
+        SizingAdvisor advisor = policy.getSizingAdvisor();
+        assertTrue(advisor.getCompletionRate() > 0);
+        assertTrue(advisor.getAverageServiceMillis() >= 50);
+        assertTrue(advisor.getAverageWaitMillis()    <  50);
+    }
+    
+    @Test
+    public void faultInjection_forcesTheFallbacks()
+            throws InterruptedException {
+        CompletableFuture<String> success = CompletableFuture.completedFuture("-result-");
+        
+        assertEquals(FaultInjection.InjectedFaultException.class.getName(), new AsyncToSync<String>()
+                .onException(exception -> exception.getClass().getName())
+                .injectFaults(new FaultInjection(42).fail(1.0))
+                .invoke(success));
+        assertEquals("-cancelled-", new AsyncToSync<String>()
+                .onCancelled(() -> "-cancelled-")
+                .injectFaults(new FaultInjection(42).cancel(1.0))
+                .invoke(success));
+        assertEquals("-interrupted-", new AsyncToSync<String>()
+                .onInterrupted(() -> "-interrupted-")
+                .injectFaults(new FaultInjection(42).interrupt(1.0))
+                .invoke(success));
+        assertFalse(Thread.currentThread().isInterrupted());
+        assertEquals("-timeout-", new AsyncToSync<String>()
+                .onTimeout(20, () -> "-timeout-")
+                .injectFaults(new FaultInjection(42).delay(1.0, 200))
+                .invoke(success));
+        assertEquals("-result-", new AsyncToSync<String>()
+                .onTimeout(1_000, () -> "-timeout-")
+                .injectFaults(new FaultInjection(42).delay(1.0, 20))
+                .invoke(success));
+    }
+    
+    @Test
+    public void faultInjection_seededFraction()
+            throws InterruptedException {
+        long[] failed = new long[2];
+        for (int run = 0; run < 2; run++) {
+            FaultInjection faults = new FaultInjection(7).fail(0.3);
+            AsyncToSync<String> policy = new AsyncToSync<String>()
+                    .onException(exception -> "-failed-")
+                    .injectFaults(faults);
+            for (int i = 0; i < 1000; i++) {
+                policy.invoke(CompletableFuture.completedFuture("-result-"));
+            }
+            failed[run] = faults.getInjectedCount(FaultInjection.Fault.FAILURE);
+        }
+        
+        assertEquals(failed[0], failed[1]);
+        assertTrue((failed[0] > 200) && (failed[0] < 400));
+    }
+    
+    @Test
+    public void faultInjection_rejectedChangeLeavesTheFaults()
+            throws InterruptedException {
+        FaultInjection faults = new FaultInjection(42).fail(0.6);
+        try {
+            faults.cancel(0.5);
+            fail("Expect the fractions over 1.0 to be rejected.");
+        } catch (IllegalArgumentException expected) {
+        }
+        
+        AsyncToSync<String> policy = new AsyncToSync<String>()
+                .onException(exception -> "-failed-")
+                .onCancelled(() -> "-cancelled-")
+                .injectFaults(faults);
+        for (int i = 0; i < 100; i++) {
+            assertFalse("-cancelled-".equals(policy.invoke(CompletableFuture.completedFuture("-result-"))));
+        }
+        assertEquals(0, faults.getInjectedCount(FaultInjection.Fault.CANCELLATION));
+        assertTrue(faults.getInjectedCount(FaultInjection.Fault.FAILURE) > 0);
+    }
+    
+    @Test
+    public void faultInjection_intoEveryEntryPoint()
+            throws InterruptedException {
+        AsyncToSync<String> policy = new AsyncToSync<String>()
+                .onException(exception -> "-failed-")
+                .injectFaults(new FaultInjection(42).fail(1.0));
+        List<CompletableFuture<String>> futures = Arrays.asList(
+                CompletableFuture.completedFuture("-A-"),
+                CompletableFuture.completedFuture("-B-"));
+        
+        assertEquals("-failed--failed-", policy.invokeReduce(futures, "", (total, value) -> total + value));
+        assertEquals("-failed-", policy.inCompletionOrder(futures).next());
+        assertEquals("[-failed-]", policy.invokeParallel(
+                Arrays.asList("A"),
+                input -> CompletableFuture.completedFuture(input),
+                1).toString());
+        try (StructuredScope.ShutdownOnFailure<String> scope = policy.scopeOnFailure()) {
+            scope.forkAsync(() -> CompletableFuture.completedFuture("-A-"));
+            assertEquals("[-failed-]", scope.join().toString());
+        }
+    }
+    
+    @Test
+    public void policyRegistry_tuneOverJmx()
+            throws InterruptedException, JMException {
+        MBeanServer    server   = MBeanServerFactory.newMBeanServer();
+        PolicyRegistry registry = new PolicyRegistry(server);
+        AsyncToSync<String> policy = registry.register(new AsyncToSync<String>()
+                .named("backend")
+                .onTimeout(20, () -> "-timeout-"));
+        
+        ObjectName name = new ObjectName("nawaman.papercuts.asynctosync:type=Policy,name=\"backend\"");
+        assertEquals(20L, server.getAttribute(name, "TimeoutMillis"));
+        assertEquals("-timeout-", policy.invoke(delayAsync(100, () -> "-result-")));
+        
+        server.setAttribute(name, new Attribute("TimeoutMillis", 1_000L));
+        assertEquals("-result-", policy.invoke(delayAsync(100, () -> "-result-")));
+        
+        server.invoke(name, "reset", new Object[0], new String[0]);
+        assertEquals(20L, (long)policy.getSettings().getWaitTime());
+        
+        registry.unregister("backend");
+        assertFalse(server.isRegistered(name));
+    }
+    
+    @Test
+    public void policyRegistry_maxConcurrent()
+            throws InterruptedException {
+        PolicyRegistry registry = new PolicyRegistry();
+        AsyncToSync<String> policy = registry.register(new AsyncToSync<String>()
+                .named("limited")
+                .orElse("-rejected-"));
+        registry.update("limited", settings -> settings.withMaxConcurrent(1));
+        
+        CompletableFuture<String> pending = new CompletableFuture<>();
+        Thread holder = new Thread(() -> {
+            try {
+                policy.invoke(pending);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        holder.start();
+        sleep(50);
+        
+        assertEquals("-rejected-", policy.invoke(CompletableFuture.completedFuture("-result-")));
+        
+        pending.complete("-done-");
+        holder.join(1_000);
+        assertEquals("-result-", policy.invoke(CompletableFuture.completedFuture("-result-")));
+    }
+    
+    @Test
+    public void policyRegistry_builderChangesAfterRegisterTakeEffect()
+            throws InterruptedException {
+        PolicyRegistry registry = new PolicyRegistry();
+        AsyncToSync<String> policy = registry.register(new AsyncToSync<String>().named("live"));
+        
+        policy.onTimeout(20, () -> "-timeout-");
+        assertEquals(20L, (long)registry.getSettings("live").getWaitTime());
+        assertEquals("-timeout-", policy.invoke(delayAsync(100, () -> "-result-")));
+        
+        registry.update("live", settings -> settings.withWaitTime(1_000L));
+        policy.maxConcurrent(3);
+        assertEquals(1_000L, (long)registry.getSettings("live").getWaitTime());
+        assertEquals(3,      registry.getSettings("live").getMaxConcurrent());
+        
+        registry.reset("live");
+        assertEquals(20L, (long)registry.getSettings("live").getWaitTime());
+    }
+    
+    @Test
+    public void policyRegistry_maxConcurrentForEveryEntryPoint()
+            throws InterruptedException {
+        PolicyRegistry registry = new PolicyRegistry();
+        AsyncToSync<String> policy = registry.register(new AsyncToSync<String>()
+                .named("batches")
+                .orElse("-rejected-"));
+        registry.update("batches", settings -> settings.withMaxConcurrent(1));
+        
+        CompletableFuture<String> pending = new CompletableFuture<>();
+        Thread holder = new Thread(() -> {
+            try {
+                policy.invoke(pending);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        holder.start();
+        sleep(50);
+        
+        AtomicInteger called = new AtomicInteger();
+        List<String> parallel = policy.invokeParallel(Arrays.asList(1, 2), input -> {
+            called.incrementAndGet();
+            return CompletableFuture.completedFuture("-result-");
+        }, 2);
+        assertEquals("[-rejected-, -rejected-]", parallel.toString());
+        assertEquals(0, called.get());
+        
+        String reduced = policy.invokeReduce(
+                Arrays.asList(CompletableFuture.completedFuture("-result-"), new CompletableFuture<String>()),
+                "",
+                (total, result) -> total + result);
+        assertEquals("-rejected--rejected-", reduced);
+        
+        Iterator<String> ordered = policy.inCompletionOrder(Arrays.asList(new CompletableFuture<String>()));
+        assertEquals("-rejected-", ordered.next());
+        
+        // The element already completed needs no wait, so it is not lost to the rejection.
+        Iterator<String> completed = policy.inCompletionOrder(Arrays.asList(
+                CompletableFuture.completedFuture("-completed-"), new CompletableFuture<String>()));
+        assertEquals("-completed-", completed.next());
+        assertEquals("-rejected-",  completed.next());
+        assertFalse(completed.hasNext());
+        
+        CompletableFuture<String> forked;
+        try (StructuredScope.ShutdownOnFailure<String> scope = policy.scopeOnFailure()) {
+            forked = scope.fork(() -> {
+                sleep(1_000);
+                return "-result-";
+            });
+            assertEquals("[-rejected-]", scope.join().toString());
+        }
+        assertTrue(forked.isCancelled());
+        
+        pending.complete("-done-");
+        holder.join(1_000);
+        assertEquals("[-result-]", policy.invokeParallel(Arrays.asList(1), input -> {
+            return CompletableFuture.completedFuture("-result-");
+        }, 1).toString());
+    }
+    
+    @Test
+    public void onExceptionByType_mostSpecific()
+            throws InterruptedException {
+        AsyncToSync<String> policy = new AsyncToSync<String>()
+                .onException(RuntimeException.class,         exception -> "-runtime-")
+                .onException(IllegalArgumentException.class, exception -> "-illegal-argument:" + exception.getMessage() + "-")
+                .onException(IllegalStateException.class,    exception -> "-illegal-state-")
+                .onException(exception -> "-any-");
+        
+        assertEquals("-illegal-argument:bad-", policy.invoke(failedFuture(new IllegalArgumentException("bad"))));
+        assertEquals("-illegal-argument:nfe-", policy.invoke(failedFuture(new NumberFormatException("nfe"))));
+        assertEquals("-illegal-state-",        policy.invoke(failedFuture(new IllegalStateException())));
+        assertEquals("-runtime-",              policy.invoke(failedFuture(new UnsupportedOperationException())));
+        // Cached route is used the second time.
+        assertEquals("-illegal-state-",        policy.invoke(failedFuture(new IllegalStateException())));
+    }
+    
+    @Test
+    public void onExceptionByType_matchesCauses()
+            throws InterruptedException {
+        AsyncToSync<String> policy = new AsyncToSync<String>()
+                .onException(java.io.IOException.class, exception -> "-io:" + exception.getMessage() + "-")
+                .onException(exception -> "-any-");
+        
+        FutureTask<String> task = new FutureTask<>(() -> { throw new java.io.IOException("disk"); });
+        task.run();
+        assertEquals("-io:disk-", policy.invoke(task));
+        assertEquals("-any-",     policy.invoke(failedFuture(new IllegalStateException())));
+    }
+    
+    private <T> CompletableFuture<T> failedFuture(Throwable exception) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(exception);
+        return future;
+    }
+    
+    @Test
+    public void asyncToLong_batch()
+            throws InterruptedException {
+        AsyncToLong policy = new AsyncToLong()
+                .stackless()
+                .orElse(-1L)
+                .onTimeout(100, () -> -2L)
+                .onException(exception -> -3L);
+        
+        long[] results = policy.invokeAll(Arrays.asList(
+                CompletableFuture.completedFuture(42L),
+                delayAsync(10, () -> 7L),
+                failedFuture(new IllegalStateException()),
+                new CompletableFuture<Long>(),
+                null));
+        
+        assertEquals("[42, 7, -3, -2, -1]", Arrays.toString(results));
+    }
+    
+    @Test
+    public void asyncToIntAndDouble()
+            throws InterruptedException {
+        assertEquals(5, new AsyncToInt().invoke(CompletableFuture.completedFuture(5)));
+        assertEquals(9, new AsyncToInt()
+                .onCancelled(() -> 9)
+                .invoke(cancelledFuture()));
+        try {
+            new AsyncToInt().invoke(failedFuture(new IllegalStateException()));
+            fail("Expect an IllegalStateException!");
+        } catch (IllegalStateException exception) {
+        }
+        
+        double[] results = new AsyncToDouble()
+                .onTimeout(20, () -> Double.NaN)
+                .invokeAll(Arrays.asList(CompletableFuture.completedFuture(1.5), new CompletableFuture<Double>()));
+        assertEquals(1.5, results[0], 0.0);
+        assertTrue(Double.isNaN(results[1]));
+    }
+    
+    @Test
+    public void asyncToInt_interruptedWork()
+            throws InterruptedException {
+        FutureTask<Integer> task = new FutureTask<>(() -> { throw new InterruptedException(); });
+        task.run();
+        
+        assertEquals(7, new AsyncToInt().onInterrupted(() -> 7).invoke(task));
+        assertEquals(3, new AsyncToInt().orElse(3).invoke(task));
+        try {
+            new AsyncToInt().invoke(task);
+            fail("Expect an InterruptedException!");
+        } catch (InterruptedException exception) {
+        }
+    }
+    
+    private <T> CompletableFuture<T> cancelledFuture() {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.cancel(false);
+        return future;
+    }
+    
+    @Test
+    public void invokeWithTransform_onCompletingThread()
+            throws InterruptedException {
+        Thread                  caller      = Thread.currentThread();
+        AtomicReference<Thread> transformer = new AtomicReference<>();
+        AsyncToSync<Integer> policy = new AsyncToSync<Integer>()
+                .onException(exception -> -1);
+        
+        int length = policy.invoke(delayAsync(20, () -> "-result-"), (String text) -> {
+            transformer.set(Thread.currentThread());
+            return text.length();
+        });
+        assertEquals(8, length);
+        assertTrue(transformer.get() != caller);
+        
+        assertEquals(-1, (int)policy.invoke(delayAsync(20, () -> "NaN"), Integer::parseInt));
+        
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            assertEquals(42, (int)policy.invoke(delayAsync(20, () -> "42"), Integer::parseInt, executor));
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    @Test
+    public void invokeWithTransform_skippedWhenAbandoned()
+            throws InterruptedException {
+        AtomicInteger transformed = new AtomicInteger();
+        CompletableFuture<String> source = new CompletableFuture<>();
+        Integer result = new AsyncToSync<Integer>()
+                .onTimeout(20, () -> -2)
+                .invoke(source, (String text) -> transformed.incrementAndGet());
+        
+        assertEquals(-2, (int)result);
+        source.complete("-late-");
+        assertEquals(0, transformed.get());
+    }
+    
+    @Test
+    public void invokeWithTransform_notSkippedUnlessGivenUp()
+            throws InterruptedException {
+        AtomicReference<Future<?>> handedOff = new AtomicReference<>();
+        AsyncToSync<Integer> policy = new AsyncToSync<Integer>()
+                .onTimeout(1_000, () -> -2)
+                .onNonBlockingThread(future -> {
+                    handedOff.set(future);
+                    return -3;
+                });
+        
+        CompletableFuture<String> source = new CompletableFuture<>();
+        List<Integer> results = new CopyOnWriteArrayList<>();
+        Thread eventLoop = new Thread(() -> {
+            NonBlockingThreads.markCurrentThread();
+            try {
+                results.add(policy.invoke(source, (String text) -> text.length()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                NonBlockingThreads.unmarkCurrentThread();
+            }
+        });
+        eventLoop.start();
+        eventLoop.join(5_000);
+        
+        assertEquals("[-3]", results.toString());
+        source.complete("-late-");
+        assertEquals(6, ((CompletableFuture<?>)handedOff.get()).getNow(null));
+    }
+    
+    @Test
+    public void deadlineExecutor_earliestDeadlineFirst()
+            throws InterruptedException {
+        DeadlineExecutor executor = new DeadlineExecutor(1);
+        try {
+            CountDownLatch blocker = new CountDownLatch(1);
+            executor.execute(() -> {
+                try {
+                    blocker.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            
+            List<String>   order   = new CopyOnWriteArrayList<>();
+            CountDownLatch done    = new CountDownLatch(5);
+            long           now     = System.nanoTime();
+            executor.execute(() -> { order.add("none");   done.countDown(); });
+            executor.execute(() -> { order.add("late");   done.countDown(); }, now + TimeUnit.SECONDS.toNanos(10), null);
+            executor.execute(() -> { order.add("early");  done.countDown(); }, now + TimeUnit.SECONDS.toNanos(5),  null);
+            executor.execute(() -> { order.add("urgent"); done.countDown(); }, now + TimeUnit.SECONDS.toNanos(1) / 2, null);
+            executor.execute(() -> { order.add("passed"); done.countDown(); }, now - 1, () -> {
+                order.add("dropped");
+                done.countDown();
+            });
+            
+            blocker.countDown();
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            // Without deadline is as if the deadline is the implicit wait time (one second) after the submission.
+            assertEquals("[dropped, urgent, none, early, late]", order.toString());
+            assertEquals(1, executor.getDroppedCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    @Test
+    public void deadlineExecutor_plainFutureAdapterGivesUpAtDeadline()
+            throws InterruptedException {
+        DeadlineExecutor executor = new DeadlineExecutor(1);
+        try {
+            AsyncToSync<String> policy = new AsyncToSync<String>()
+                    .onTimeout(30, () -> "-timeout-")
+                    .internalExecutor(executor);
+            
+            // The plain future never completes, yet the only thread is free again for the next invocation.
+            assertEquals("-timeout-", policy.invoke(new FutureTask<String>(() -> "-never-")));
+            FutureTask<String> task = new FutureTask<>(() -> "-result-");
+            task.run();
+            assertEquals("-result-", policy.invoke(task));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    @Test
+    public void plainFutureAdapters_doNotStarveTheOthers()
+            throws InterruptedException {
+        AsyncToSync<String> policy = new AsyncToSync<String>().onTimeout(1_000, () -> "-timeout-");
+        
+        // More slow plain futures than the threads of the shared deadline executor.
+        List<CompletableFuture<String>> pendings = new ArrayList<>();
+        for (int i = 0; i <= DeadlineExecutor.shared().getMaximumPoolSize(); i++) {
+            pendings.add(policy.invokeAsync(new FutureTask<String>(() -> "-never-")));
+        }
+        
+        FutureTask<String> task = new FutureTask<>(() -> "-result-");
+        task.run();
+        long start = System.nanoTime();
+        assertEquals("-result-", policy.invoke(task));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 500);
+        for (CompletableFuture<String> pending : pendings) {
+            assertEquals("-timeout-", pending.join());
+        }
+    }
+    
+    @Test
+    public void rateLimitOrElse_fallBackRightAwayWithoutCallingTheSupplier()
+            throws InterruptedException {
+        AtomicInteger       calls  = new AtomicInteger();
+        AsyncToSync<String> policy = new AsyncToSync<String>()
+                .orElse("-throttled-")
+                .rateLimitOrElse(1, 2);
+        
+        List<String> results = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            results.add(policy.invokeWith(() -> {
+                calls.incrementAndGet();
+                return CompletableFuture.completedFuture("-result-");
+            }));
+        }
+        assertEquals("[-result-, -result-, -throttled-]", results.toString());
+        assertEquals(2, calls.get());
+        assertEquals(1, policy.getThrottledCount());
+    }
+    
+    @Test
+    public void rateLimit_waitForTokenWithinTheWaitTime()
+            throws InterruptedException {
+        AsyncToSync<String> policy = new AsyncToSync<String>()
+                .onTimeout(1000, () -> "-timeout-")
+                .rateLimit(10, 1);
+        
+        assertEquals("-result-", policy.invokeWith(() -> CompletableFuture.completedFuture("-result-")));
+        long start = System.currentTimeMillis();
+        assertEquals("-result-", policy.invokeWith(() -> CompletableFuture.completedFuture("-result-")));
+        assertTrue(System.currentTimeMillis() - start >= 50);
+        assertEquals(0, policy.getThrottledCount());
+    }
+    
+    @Test
+    public void rateLimit_timeoutRightAwayWhenNoTokenWithinTheWaitTime()
+            throws InterruptedException {
+        AtomicInteger       calls  = new AtomicInteger();
+        AsyncToSync<String> policy = new AsyncToSync<String>()
+                .onTimeout(100, () -> "-timeout-")
+                .rateLimit(1, 1);
+        
+        Supplier<CompletableFuture<String>> supplier = () -> {
+            calls.incrementAndGet();
+            return CompletableFuture.completedFuture("-result-");
+        };
+        assertEquals("-result-", policy.invokeWith(supplier));
+        long start = System.currentTimeMillis();
+        assertEquals("-timeout-", policy.invokeWith(supplier));
+        assertTrue(System.currentTimeMillis() - start < 100);
+        assertEquals(1, calls.get());
+        assertEquals(1, policy.getThrottledCount());
+    }
+    
+    @Test
+    public void rateLimit_rejectedInvocationTakesNoToken()
+            throws InterruptedException {
+        AtomicInteger       calls  = new AtomicInteger();
+        AsyncToSync<String> policy = new AsyncToSync<String>()
+                .orElse("-default-")
+                .rateLimitOrElse(1, 1)
+                .maxConcurrent(1);
+        
+        CompletableFuture<String> pending = new CompletableFuture<>();
+        Thread holder = new Thread(() -> {
+            try {
+                policy.invoke(pending);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        holder.start();
+        sleep(50);
+        
+        Supplier<CompletableFuture<String>> supplier = () -> {
+            calls.incrementAndGet();
+            return CompletableFuture.completedFuture("-result-");
+        };
+        assertEquals("-default-", policy.invokeWith(supplier));
+        assertEquals(0, calls.get());
+        
+        pending.complete("-done-");
+        holder.join(1_000);
+        assertEquals("-result-", policy.invokeWith(supplier));
+        assertEquals(0, policy.getThrottledCount());
+    }
+    
+    @Test
+    public void rateLimit_interruptedWaitGivesTheTokenBack()
+            throws InterruptedException {
+        AsyncToSync<String> policy = new AsyncToSync<String>()
+                .onTimeout(5_000, () -> "-timeout-")
+                .rateLimit(1, 1);
+        Supplier<CompletableFuture<String>> supplier = () -> CompletableFuture.completedFuture("-result-");
+        assertEquals("-result-", policy.invokeWith(supplier));
+        
+        AtomicBoolean interrupted = new AtomicBoolean();
+        Thread waiter = new Thread(() -> {
+            try {
+                policy.invokeWith(supplier);
+            } catch (InterruptedException e) {
+                interrupted.set(true);
+            }
+        });
+        waiter.start();
+        sleep(100);
+        waiter.interrupt();
+        waiter.join(1_000);
+        assertTrue(interrupted.get());
+        
+        // The next token is due in a second -- not two as it would be if the interrupted wait had kept its token.
+        long start = System.currentTimeMillis();
+        assertEquals("-result-", policy.invokeWith(supplier));
+        assertTrue(System.currentTimeMillis() - start < 1_500);
+    }
+    
 }
@@ -0,0 +1,277 @@
+package nawaman.papercuts.concurrency.asynctosync.loadtest;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import nawaman.papercuts.concurrency.asynctosync.loadtest.SimulatedBackend.LatencyDistribution;
+import nawaman.papercuts.concurrent.asynctosync.AsyncToSync;
+
+/**
+ * The load test of {@link AsyncToSync} against simulated backends.
+ * 
+ * A number of caller threads call {@code invoke} in a closed loop for a duration and the harness reports the
+ *   throughput, the p50/p99/p999 latency as seen by the callers, the timeout and fallback rates as well as the thread
+ *   and heap usage. This is not run as part of the unit tests; run it with:
+ * 
+ * <pre>
+ *   mvn test-compile
+ *   java -cp target/classes:target/test-classes \
+ *       nawaman.papercuts.concurrency.asynctosync.loadtest.LoadHarness [callers] [seconds] [timeoutMillis]
+ * </pre>
+ * 
+ * @author NawaMan
+ */
+public class LoadHarness {
+    
+    private static final String FALLBACK = "-fallback-";
+    
+    private static final String TIMEOUT = "-timeout-";
+    
+    /** The result of one run. */
+    public static class Report {
+        
+        final String name;
+        final int    callers;
+        final long   calls;
+        final long   timeouts;
+        final long   fallbacks;
+        final double seconds;
+        final long[] latencies;
+        final int    peakThreads;
+        final long   heapBytes;
+        
+        Report(
+                String name,
+                int    callers,
+                long   calls,
+                long   timeouts,
+                long   fallbacks,
+                double seconds,
+                long[] latencies,
+                int    peakThreads,
+                long   heapBytes) {
+            this.name        = name;
+            this.callers     = callers;
+            this.calls       = calls;
+            this.timeouts    = timeouts;
+            this.fallbacks   = fallbacks;
+            this.seconds     = seconds;
+            this.latencies   = latencies;
+            this.peakThreads = peakThreads;
+            this.heapBytes   = heapBytes;
+        }
+        
+        /**
+         * Returns the latency percentile in microsecond.
+         * 
+         * @param percentile
+         *            the percentile (0.0 to 1.0).
+         * @return the latency.
+         */
+        public long percentileMicros(
+                double percentile) {
+            if (latencies.length == 0) {
+                return 0;
+            }
+            int index = (int)Math.min(latencies.length - 1, Math.ceil(percentile * latencies.length) - 1);
+            return TimeUnit.NANOSECONDS.toMicros(latencies[Math.max(0, index)]);
+        }
+        
+        @Override
+        public String toString() {
+            return String.format(
+                    "%-10s callers=%4d  throughput=%9.1f/s  p50=%7dus  p99=%7dus  p999=%7dus  "
+                  + "timeout=%5.2f%%  fallback=%5.2f%%  peakThreads=%4d  heap=%5dMB",
+                    name,
+                    callers,
+                    calls / seconds,
+                    percentileMicros(0.50),
+                    percentileMicros(0.99),
+                    percentileMicros(0.999),
+                    rate(timeouts),
+                    rate(fallbacks),
+                    peakThreads,
+                    heapBytes / (1024 * 1024));
+        }
+        
+        private double rate(long count) {
+            return (calls == 0) ? 0 : (100.0 * count / calls);
+        }
+        
+    }
+    
+    /**
+     * Run the standard scenarios.
+     * 
+     * @param args
+     *            the number of callers, the duration in second and the timeout in millisecond.
+     * @throws InterruptedException
+     *            when the current thread is interrupted.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int  callers       = (args.length > 0) ? Integer.parseInt(args[0]) : 200;
+        int  seconds       = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+        long timeoutMillis = (args.length > 2) ? Long.parseLong(args[2])   : 100;
+        
+        Map<String, Supplier<SimulatedBackend>> scenarios = new LinkedHashMap<>();
+        scenarios.put("log-normal", () -> new SimulatedBackend(LatencyDistribution.logNormal(20, 0.5), 0.0));
+        scenarios.put("bimodal",    () -> new SimulatedBackend(LatencyDistribution.bimodal(
+                                                LatencyDistribution.logNormal(5, 0.3),
+                                                LatencyDistribution.logNormal(150, 0.3),
+                                                0.05), 0.0));
+        scenarios.put("failing",    () -> new SimulatedBackend(LatencyDistribution.logNormal(20, 0.5), 0.1));
+        
+        System.out.printf("callers=%d, duration=%ds, onTimeout=%dms%n", callers, seconds, timeoutMillis);
+        for (Map.Entry<String, Supplier<SimulatedBackend>> scenario : scenarios.entrySet()) {
+            try (SimulatedBackend backend = scenario.getValue().get()) {
+                Report report = run(scenario.getKey(), backend, callers, seconds * 1000L, timeoutMillis);
+                System.out.println(report);
+            }
+        }
+    }
+    
+    /**
+     * Run the load against the backend.
+     * 
+     * @param name
+     *            the name of the run.
+     * @param backend
+     *            the backend.
+     * @param callers
+     *            the number of caller threads.
+     * @param durationMillis
+     *            the duration of the run in millisecond.
+     * @param timeoutMillis
+     *            the timeout of each invocation in millisecond.
+     * @return the report.
+     * @throws InterruptedException
+     *            when the current thread is interrupted.
+     */
+    public static Report run(
+            String           name,
+            SimulatedBackend backend,
+            int              callers,
+            long             durationMillis,
+            long             timeoutMillis)
+                    throws InterruptedException {
+        LongAdder timeouts  = new LongAdder();
+        LongAdder fallbacks = new LongAdder();
+        AsyncToSync<String> policy = new AsyncToSync<String>()
+                .stackless()
+                .onTimeout(timeoutMillis, () -> { timeouts.increment(); return TIMEOUT; })
+                .onException(exception -> { fallbacks.increment(); return FALLBACK; });
+        
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+        threadBean.resetPeakThreadCount();
+        
+        CountDownLatch start    = new CountDownLatch(1);
+        List<Caller>   workers  = new ArrayList<>();
+        List<Thread>   threads  = new ArrayList<>();
+        for (int i = 0; i < callers; i++) {
+            Caller caller = new Caller(policy, backend, start);
+            Thread thread = new Thread(caller, "LoadHarness-caller-" + i);
+            thread.setDaemon(true);
+            workers.add(caller);
+            threads.add(thread);
+            thread.start();
+        }
+        
+        long begin = System.nanoTime();
+        long end   = begin + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        for (Caller caller : workers) {
+            caller.end = end;
+        }
+        start.countDown();
+        
+        long heapBytes = 0;
+        while (System.nanoTime() < end) {
+            Thread.sleep(Math.min(100, Math.max(1, TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime()))));
+            heapBytes = Math.max(heapBytes, memoryBean.getHeapMemoryUsage().getUsed());
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double seconds = (System.nanoTime() - begin) / 1e9;
+        
+        int count = 0;
+        for (Caller caller : workers) {
+            count += caller.count;
+        }
+        long[] latencies = new long[count];
+        int    index     = 0;
+        for (Caller caller : workers) {
+            System.arraycopy(caller.latencies, 0, latencies, index, caller.count);
+            index += caller.count;
+        }
+        Arrays.sort(latencies);
+        
+        return new Report(
+                name,
+                callers,
+                count,
+                timeouts.sum(),
+                fallbacks.sum(),
+                seconds,
+                latencies,
+                threadBean.getPeakThreadCount(),
+                heapBytes);
+    }
+    
+    // == AUX class ====================================================================================================
+    
+    private static class Caller implements Runnable {
+        
+        private final AsyncToSync<String> policy;
+        private final SimulatedBackend    backend;
+        private final CountDownLatch      start;
+        
+        private volatile long end;
+        
+        private long[] latencies = new long[1024];
+        private int    count     = 0;
+        
+        Caller(
+                AsyncToSync<String> policy,
+                SimulatedBackend    backend,
+                CountDownLatch      start) {
+            this.policy  = policy;
+            this.backend = backend;
+            this.start   = start;
+        }
+        
+        @Override
+        public void run() {
+            try {
+                start.await();
+                long deadline = end;
+                while (System.nanoTime() < deadline) {
+                    long begin = System.nanoTime();
+                    policy.invoke(backend.call("-result-"));
+                    record(System.nanoTime() - begin);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        private void record(long latency) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = latency;
+        }
+        
+    }
+    
+}
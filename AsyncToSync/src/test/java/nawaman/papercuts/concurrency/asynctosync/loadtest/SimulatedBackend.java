@@ -0,0 +1,147 @@
+package nawaman.papercuts.concurrency.asynctosync.loadtest;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A simulated asynchronous backend whose calls are completed by a scheduler after a latency drawn from a distribution.
+ * No thread is held while a call is in flight, just like a real non-blocking client.
+ * 
+ * @author NawaMan
+ */
+public class SimulatedBackend implements AutoCloseable {
+    
+    /** The distribution of the backend latency. */
+    @FunctionalInterface
+    public static interface LatencyDistribution {
+        
+        /**
+         * Returns the next latency in microsecond.
+         * 
+         * @param random
+         *            the random.
+         * @return the latency in microsecond.
+         */
+        public long nextMicros(ThreadLocalRandom random);
+        
+        /**
+         * Returns a constant latency.
+         * 
+         * @param millis
+         *            the latency in millisecond.
+         * @return the distribution.
+         */
+        public static LatencyDistribution constant(
+                double millis) {
+            long micros = (long)(millis * 1000);
+            return random -> micros;
+        }
+        
+        /**
+         * Returns a log-normal latency (a long tail around the median).
+         * 
+         * @param medianMillis
+         *            the median latency in millisecond.
+         * @param sigma
+         *            the shape - the larger the longer the tail (0.5 gives p99 about 3.2 times the median).
+         * @return the distribution.
+         */
+        public static LatencyDistribution logNormal(
+                double medianMillis,
+                double sigma) {
+            double mu = Math.log(medianMillis * 1000);
+            return random -> (long)Math.exp(mu + sigma * random.nextGaussian());
+        }
+        
+        /**
+         * Returns a bimodal latency - mostly fast with some slow (such as cache hit and miss).
+         * 
+         * @param fast
+         *            the fast distribution.
+         * @param slow
+         *            the slow distribution.
+         * @param slowFraction
+         *            the fraction of the slow calls (0.0 to 1.0).
+         * @return the distribution.
+         */
+        public static LatencyDistribution bimodal(
+                LatencyDistribution fast,
+                LatencyDistribution slow,
+                double              slowFraction) {
+            return random -> ((random.nextDouble() < slowFraction) ? slow : fast).nextMicros(random);
+        }
+        
+    }
+    
+    /** The exception of the failed calls. */
+    public static class BackendException extends RuntimeException {
+        
+        private static final long serialVersionUID = -6502473958240919126L;
+        
+        BackendException() {
+            super("Simulated backend failure.", null, false, false);
+        }
+        
+    }
+    
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    
+    private final LatencyDistribution latency;
+    
+    private final double failureFraction;
+    
+    private final ScheduledThreadPoolExecutor scheduler;
+    
+    /**
+     * Constructs a backend.
+     * 
+     * @param latency
+     *            the latency distribution.
+     * @param failureFraction
+     *            the fraction of the calls that fail (after the latency).
+     */
+    public SimulatedBackend(
+            LatencyDistribution latency,
+            double              failureFraction) {
+        this.latency         = latency;
+        this.failureFraction = failureFraction;
+        this.scheduler       = new ScheduledThreadPoolExecutor(2, runnable -> {
+            Thread thread = new Thread(runnable, "SimulatedBackend-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.setRemoveOnCancelPolicy(true);
+    }
+    
+    /**
+     * Make a call.
+     * 
+     * @param request
+     *            the request to be echoed back.
+     * @return the future of the response.
+     */
+    public <T> CompletableFuture<T> call(
+            T request) {
+        ThreadLocalRandom    random   = ThreadLocalRandom.current();
+        long                 micros   = Math.max(0, latency.nextMicros(random));
+        boolean              isFailed = random.nextDouble() < failureFraction;
+        CompletableFuture<T> response = new CompletableFuture<>();
+        scheduler.schedule(() -> {
+            if (isFailed) {
+                response.completeExceptionally(new BackendException());
+            } else {
+                response.complete(request);
+            }
+        }, micros, TimeUnit.MICROSECONDS);
+        return response;
+    }
+    
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+    
+}